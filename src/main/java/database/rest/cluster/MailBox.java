@@ -24,40 +24,79 @@ package database.rest.cluster;
 import java.io.File;
 import java.util.Set;
 import java.util.HashSet;
-import java.util.HashMap;
+import java.nio.ByteOrder;
 import java.nio.file.Path;
 import java.nio.file.Files;
 import java.util.logging.Logger;
 import java.nio.file.FileSystem;
 import java.nio.MappedByteBuffer;
 import java.nio.file.FileSystems;
+import java.lang.invoke.VarHandle;
 import database.rest.config.Paths;
 import database.rest.config.Config;
 import java.nio.channels.FileChannel;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ConcurrentHashMap;
 import static java.nio.file.StandardOpenOption.*;
 import java.nio.file.attribute.PosixFilePermission;
 
 
+/**
+ *
+ * Shared memory between the HTTP process and a RESTServer.
+ * The region starts with one word per extent, holding the pid of the
+ * process that owns it and the call it is used for (0 = free). Extents are claimed and released with
+ * CAS directly in the mapped region, so ownership is exclusive per call
+ * across threads and processes, without locks. Extents held by processes
+ * that no longer exist are reclaimed when the mailbox runs full.
+ * Payloads larger than one extent are written into a run of adjacent
+ * extents, so they can still be copied in one go. A run is limited to a
+ * quarter of the mailbox. A reply is written into the run of the request
+ * it answers when it fits, otherwise into a run of its own.
+ * Data is copied using absolute positions, so the buffer can be shared
+ * by all threads.
+ *
+ */
+
 public class MailBox
 {
   private final int extnds;
   private final int extsize;
+  private final int header;
+  private final int maxrun;
   private final MappedByteBuffer shmmem;
-  private final HashMap<Integer,Long> extmap;
-
-  private final Object RLOCK = new Object();
-  private final Object WLOCK = new Object();
   private final Logger logger = Logger.getLogger("internal");
 
+  private final static long owner = ProcessHandle.current().pid();
+
+  // Owner word: pid << 32 | call (31 bits), BUSY while a reply is copied in
+  private final static long CALL = 0x7fffffffL;
+  private final static long BUSY = 0x80000000L;
+
+  private final static VarHandle SLOT =
+    MethodHandles.byteBufferViewVarHandle(long[].class,ByteOrder.nativeOrder());
+
+  private final static LongAdder failed = new LongAdder();
+  private final static LongAdder allocated = new LongAdder();
+  private final static LongAdder reclaimed = new LongAdder();
+
+  // One per RESTServer, replaced when it reconnects
+  private final static ConcurrentHashMap<Short,MailBox> mailboxes =
+    new ConcurrentHashMap<Short,MailBox>();
+
 
   public MailBox(Config config, short id) throws Exception
   {
     String filename = getFileName(id);
     FileSystem fs = FileSystems.getDefault();
 
-    this.extmap = new HashMap<Integer,Long>();
     this.extnds = config.getTopology().extnds;
     this.extsize = config.getTopology().extsize;
+    this.maxrun = Math.max(1,extnds/4);
+
+    // Owner words, padded to a cache line
+    this.header = (extnds * Long.BYTES + 63) & ~63;
 
     Path path = fs.getPath(filename);
     FileChannel fc = FileChannel.open(path,CREATE,READ,WRITE);
@@ -77,26 +116,32 @@ public class MailBox
       }
     }
 
-    this.shmmem = fc.map(FileChannel.MapMode.READ_WRITE,0,extnds*extsize);
+    this.shmmem = fc.map(FileChannel.MapMode.READ_WRITE,0,header+extnds*extsize);
+    mailboxes.put(id,this);
   }
 
 
-  public boolean fits(byte[] data)
+  /**
+   *
+   * Write a reply into the run of the request it answers,
+   * when it fits in the extents claimed for the request size.
+   * The run is marked busy while copying, and only if it still belongs
+   * to the call. The requester may have given up on it.
+   *
+   */
+  public boolean write(long id, int extend, int size, byte[] data)
   {
-    return(data.length <= extsize);
-  }
+    if (extents(data.length) > extents(size))
+      return(false);
 
+    long word = (long) SLOT.getVolatile(shmmem,slot(extend));
+    if (word == 0 || (word & BUSY) != 0 || (word & CALL) != (id & CALL)) return(false);
 
-  public boolean write(int extend, byte[] data)
-  {
-    if (data.length > extsize)
+    if (!SLOT.compareAndSet(shmmem,slot(extend),word,word | BUSY))
       return(false);
 
-    synchronized(WLOCK)
-    {
-      shmmem.position(extend*extsize);
-      shmmem.put(data);
-    }
+    shmmem.put(offset(extend),data);
+    SLOT.compareAndSet(shmmem,slot(extend),word | BUSY,word);
 
     return(true);
   }
@@ -104,48 +149,220 @@ public class MailBox
 
   public int write(long id, byte[] data)
   {
-    if (data.length > extsize)
-      return(-1);
+    int run = extents(data.length);
+    if (run > maxrun) return(-1);
 
-    int start = (int) (id % extnds);
+    int extend = allocate((int) (id % extnds),run,stamp(owner,id));
+    if (extend < 0) return(-1);
 
-    synchronized(WLOCK)
+    shmmem.put(offset(extend),data);
+    return(extend);
+  }
+
+
+  /**
+   *
+   * Write a reply that does not fit into the extent it answers.
+   * The run is claimed on behalf of the process owning that extent,
+   * which releases it when read.
+   *
+   */
+  public int forward(long id, int extend, byte[] data)
+  {
+    int run = extents(data.length);
+    if (run > maxrun) return(-1);
+
+    long word = (long) SLOT.getVolatile(shmmem,slot(extend)) & ~BUSY;
+    if (word == 0 || (word & CALL) != (id & CALL)) return(-1);
+
+    int reply = allocate(extend,run,word);
+    if (reply < 0) return(-1);
+
+    shmmem.put(offset(reply),data);
+    return(reply);
+  }
+
+
+  public byte[] read(int extend, int size)
+  {
+    byte[] data = new byte[size];
+    shmmem.get(offset(extend),data);
+    return(data);
+  }
+
+
+  /**
+   *
+   * Release a run claimed by write(id,data) or forward(extend,data)
+   *
+   */
+  public void clear(long id, int extend, int size)
+  {
+    free(extend,extents(size),stamp(owner,id));
+  }
+
+
+  private int extents(int size)
+  {
+    return(Math.max(1,(size + extsize - 1) / extsize));
+  }
+
+
+  private static long stamp(long pid, long id)
+  {
+    return((pid << 32) | (id & CALL));
+  }
+
+
+  private int allocate(int start, int run, long word)
+  {
+    for (int pass = 0; pass < 2; pass++)
     {
       for (int i = 0; i < extnds; i++)
       {
         int extend = (start + i) % extnds;
-        if (extmap.get(extend) == null)
+        if (extend + run > extnds) continue;
+
+        if (claim(extend,run,word))
         {
-          shmmem.position(extend*extsize);
-          shmmem.put(data);
+          allocated.increment();
           return(extend);
         }
       }
+
+      if (reclaim() == 0)
+        break;
     }
 
-    logger.warning("No available extends in mailbox");
+    failed.increment();
+    logger.fine("No available extends in mailbox");
+
     return(-1);
   }
 
 
-  public byte[] read(int extend, int size)
+  private boolean claim(int extend, int run, long word)
   {
-    byte[] data = new byte[size];
+    for (int i = 0; i < run; i++)
+    {
+      if (!SLOT.compareAndSet(shmmem,slot(extend+i),0L,word))
+      {
+        for (int j = 0; j < i; j++)
+          SLOT.setVolatile(shmmem,slot(extend+j),0L);
+
+        return(false);
+      }
+    }
 
-    synchronized(RLOCK)
+    return(true);
+  }
+
+
+  // The first extent is freed first, once no reply is being copied in
+  private void free(int extend, int run, long word)
+  {
+    while(!SLOT.compareAndSet(shmmem,slot(extend),word,0L))
     {
-      extmap.remove(extend);
-      shmmem.position(extend*extsize);
-      shmmem.get(data);
+      if ((long) SLOT.getVolatile(shmmem,slot(extend)) != (word | BUSY)) return;
+      Thread.onSpinWait();
     }
 
-    return(data);
+    for (int i = 1; i < run; i++)
+      SLOT.compareAndSet(shmmem,slot(extend+i),word,0L);
+  }
+
+
+  /**
+   *
+   * Extents claimed, by any process, including replies not yet read
+   *
+   */
+  private int used()
+  {
+    int used = 0;
+
+    for (int i = 0; i < extnds; i++)
+    {
+      if ((long) SLOT.getVolatile(shmmem,slot(i)) != 0)
+        used++;
+    }
+
+    return(used);
   }
 
 
-  public void clear(int extend)
+  /**
+   *
+   * Free extents held by processes that are gone
+   *
+   */
+  private int reclaim()
   {
-    extmap.remove(extend);
+    int freed = 0;
+
+    for (int i = 0; i < extnds; i++)
+    {
+      long word = (long) SLOT.getVolatile(shmmem,slot(i));
+
+      long pid = word >>> 32;
+      if (pid == 0 || pid == owner) continue;
+
+      boolean alive = ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+
+      if (!alive && SLOT.compareAndSet(shmmem,slot(i),word,0L))
+      {
+        freed++;
+        reclaimed.increment();
+      }
+    }
+
+    return(freed);
+  }
+
+
+  private int slot(int extend)
+  {
+    return(extend * Long.BYTES);
+  }
+
+
+  private int offset(int extend)
+  {
+    return(header + extend * extsize);
+  }
+
+
+  public static long allocated()
+  {
+    return(allocated.sum());
+  }
+
+
+  public static long failed()
+  {
+    return(failed.sum());
+  }
+
+
+  public static long reclaimed()
+  {
+    return(reclaimed.sum());
+  }
+
+
+  /**
+   *
+   * Counted from the owner words, only when asked for
+   *
+   */
+  public static int inuse()
+  {
+    int used = 0;
+
+    for(MailBox mailbox : mailboxes.values())
+      used += mailbox.used();
+
+    return(used);
   }
 
 
@@ -155,4 +372,4 @@ public class MailBox
     hex = String.format("%4s",hex).replace(' ','0');
     return(Paths.ipcdir + File.separator + "ipc" + hex + ".mbx");
   }
-}
\ No newline at end of file
+}
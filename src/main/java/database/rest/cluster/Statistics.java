@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.logging.Level;
 import database.rest.config.Config;
 import database.rest.servers.Server;
+import database.rest.pools.ThreadPool;
 
 
 public class Statistics
@@ -48,7 +49,10 @@ public class Statistics
 
   private long requests;
 
-  public static final int reclen = 7*Long.BYTES+3;
+  private long queued;
+  private long rejected;
+
+  public static final int reclen = 9*Long.BYTES+3;
 
 
   @SuppressWarnings("cast")
@@ -63,6 +67,8 @@ public class Statistics
       stats.pid = server.pid();
       stats.started = server.started();
       stats.requests = server.requests();
+      stats.queued = ThreadPool.queued();
+      stats.rejected = ThreadPool.rejected();
       stats.updated = System.currentTimeMillis();
 
       stats.totmem = Runtime.getRuntime().maxMemory();
@@ -80,6 +86,8 @@ public class Statistics
       data.putLong(stats.usedmem);
       data.putLong(stats.freemem);
       data.putLong(stats.requests);
+      data.putLong(stats.queued);
+      data.putLong(stats.rejected);
 
       data.put(srvtype);
       data.put(httpmgr);
@@ -121,6 +129,8 @@ public class Statistics
           stats.usedmem  = data.getLong();
           stats.freemem  = data.getLong();
           stats.requests = data.getLong();
+          stats.queued   = data.getLong();
+          stats.rejected = data.getLong();
 
           byte srvtype = data.get();
           byte httpmgr = data.get();
@@ -181,6 +191,16 @@ public class Statistics
     return(requests);
   }
 
+  public long queued()
+  {
+    return(queued);
+  }
+
+  public long rejected()
+  {
+    return(rejected);
+  }
+
   public boolean online()
   {
     return(online);
@@ -117,7 +117,9 @@ public class Config
   {
     if (pkictx != null) return(pkictx);
     Security security = this.getSecurity();
+
     pkictx = new PKIContext(security.getIdentity(),security.getTrusted());
+    pkictx.setSessionCache(security.sessionCache(),security.sessionTimeout());
     return(pkictx);
   }
 
@@ -26,6 +26,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import java.util.ArrayList;
 import java.net.InetAddress;
+import java.util.LinkedHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 
@@ -36,13 +37,27 @@ public class HTTP
   public final Ports ports;
   public final int timeout;
   public final int bufsize;
+  public final int filebuf;
+  public final int cachesize;
+  public final int poolsize;
+  public final int pooltotal;
+  public final int maxfield;
+  public final int maxparts;
+  public final int acceptors;
+  public final int maxbody;
+  public final int maxupload;
+  public final int memupload;
+  public final int upbuffer;
+  public final boolean reuseport;
   public final String tmppath;
   public final String virtendp;
   public final int graceperiod;
   public final Handlers handlers;
   public final ArrayList<FilePattern> cache;
+  public final ArrayList<FilePattern> immutable;
   public final ArrayList<String> corsdomains;
   public final ArrayList<FilePattern> compression;
+  public final LinkedHashMap<String,String> encoders;
   public final ConcurrentHashMap<String,String> mimetypes;
 
 
@@ -51,8 +66,27 @@ public class HTTP
     this.timeout = Config.<Integer>get(config,"KeepAlive") * 1000;
     this.host = Config.get(config,"Host",InetAddress.getLocalHost().getHostName());
 
+    this.acceptors = Config.get(config,"acceptors",1);
+    this.reuseport = Config.get(config,"reuseport",false);
+
     JSONObject buffers = Config.getSection(config,"buffers");
     this.bufsize = Config.get(buffers,"network",4096);
+    this.poolsize = Config.get(buffers,"pool",256*1024);
+    this.pooltotal = Config.get(buffers,"pool.total",16*1024*1024);
+    this.filebuf = Config.get(buffers,"file",256*1024);
+    this.cachesize = Config.get(buffers,"content",64*1024*1024);
+
+    JSONObject upload = new JSONObject();
+
+    if (Config.has(config,"upload"))
+      upload = Config.getSection(config,"upload");
+
+    this.maxupload = Config.get(upload,"max",512*1024*1024);
+    this.memupload = Config.get(upload,"memory",1024*1024);
+    this.maxfield = Config.get(upload,"field",64*1024);
+    this.maxparts = Config.get(upload,"parts",256);
+    this.maxbody = Config.get(upload,"body",64*1024*1024);
+    this.upbuffer = Config.get(upload,"socket",256*1024);
 
     JSONObject deploy = config.getJSONObject("deployment");
     graceperiod = Config.get(deploy,"grace.period");
@@ -132,6 +166,40 @@ public class HTTP
       this.compression.add(new FilePattern(pattern,size));
     }
 
+    // Precompressed variants besides gzip, deflate is built in
+    this.encoders = new LinkedHashMap<String,String>();
+
+    if (!Config.has(config,"encoders"))
+    {
+      this.encoders.put("deflate",null);
+    }
+    else
+    {
+      JSONArray encoders = Config.getArray(config,"encoders");
+
+      for (int i = 0; i < encoders.length(); i++)
+      {
+        JSONObject entry = encoders.getJSONObject(i);
+        String encoding = Config.get(entry,"encoding");
+        this.encoders.put(encoding,Config.get(entry,"class",null));
+      }
+    }
+
+    // Fingerprinted assets, that never change under the same name
+    this.immutable = new ArrayList<FilePattern>();
+
+    if (Config.has(config,"immutable"))
+    {
+      JSONArray immutable = Config.getArray(config,"immutable");
+
+      for (int i = 0; i < immutable.length(); i++)
+      {
+        JSONObject entry = immutable.getJSONObject(i);
+        String pattern = Config.get(entry,"pattern");
+        this.immutable.add(new FilePattern(pattern,0));
+      }
+    }
+
     JSONArray mtypes = Config.getArray(config,"mimetypes");
     this.mimetypes = new ConcurrentHashMap<String,String>();
 
@@ -38,6 +38,12 @@ public class Security
 
   private final boolean tokens;
   private final boolean database;
+
+  private final int sescache;
+  private final int sestimeout;
+  private final int handshakers;
+  private final int hstimeout;
+  private final int hsqueue;
   private final Hashtable<String,CustomAuthenticator> authenticators;
 
 
@@ -102,6 +108,17 @@ public class Security
     }
 
     this.secret = Config.get(config,"shared_secret");
+
+    JSONObject tls = new JSONObject();
+
+    if (Config.has(config,"tls"))
+      tls = Config.getSection(config,"tls");
+
+    this.sescache = Config.get(tls,"session.cache",20000);
+    this.sestimeout = Config.get(tls,"session.timeout",86400);
+    this.handshakers = Config.get(tls,"handshakers",2*Topology.cores);
+    this.hsqueue = Config.get(tls,"handshake.queue",64*Topology.cores);
+    this.hstimeout = Config.get(tls,"handshake.timeout",3000);
   }
 
 
@@ -130,6 +147,31 @@ public class Security
     return(database);
   }
 
+  public int sessionCache()
+  {
+    return(sescache);
+  }
+
+  public int sessionTimeout()
+  {
+    return(sestimeout);
+  }
+
+  public int handshakers()
+  {
+    return(handshakers);
+  }
+
+  public int handshakeQueue()
+  {
+    return(hsqueue);
+  }
+
+  public int handshakeTimeout()
+  {
+    return(hstimeout);
+  }
+
   public Hashtable<String,CustomAuthenticator> authenticators()
   {
     return(authenticators);
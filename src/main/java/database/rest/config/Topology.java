@@ -27,10 +27,15 @@ import org.json.JSONObject;
 public class Topology
 {
   public final boolean hot;
+  public final boolean virtual;
+  public final boolean shm;
+  public final boolean unix;
   public final short workers;
   public final short waiters;
   public final short servers;
 
+  public final int queue;
+  public final int qtime;
   public final int heartbeat;
 
   public final int extnds;
@@ -62,6 +67,12 @@ public class Topology
 
     this.hot = Config.get(config,"hot-standby");
 
+    this.queue = Config.get(config,"queue",4*this.workers);
+    this.qtime = Config.get(config,"queue-time",5000);
+
+    String threads = Config.get(config,"threads","platform");
+    this.virtual = threads.trim().equalsIgnoreCase("virtual");
+
     JSONObject ipc = config.getJSONObject("ipc");
 
     this.extnds = this.workers * 2;
@@ -85,5 +96,9 @@ public class Topology
     this.extsize = Integer.parseInt(extsz) * mfac;
 
     this.heartbeat = Config.get(ipc,"heartbeat");
+
+    String transport = Config.get(ipc,"transport","tcp");
+    this.unix = transport.trim().equalsIgnoreCase("unix");
+    this.shm = transport.trim().equalsIgnoreCase("shm");
   }
 }
\ No newline at end of file
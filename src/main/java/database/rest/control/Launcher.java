@@ -287,6 +287,8 @@ public class Launcher implements ILauncher
     String hid = String.format("%3s"," id");
     String hpid = String.format("%8s"," pid ");
     String hhits = String.format("%12s","hits  ");
+    String hqueue = String.format("%8s","queue ");
+    String hrejected = String.format("%10s","rejected ");
 
     String htype = String.format("%-8s"," type");
 
@@ -333,10 +335,10 @@ public class Launcher implements ILauncher
     // Processes
 
     out.println("Processes");
-    line = String.format("%78s"," ").replace(" ","-");
+    line = String.format("%100s"," ").replace(" ","-");
 
     out.println(line);
-    out.println("|"+hid+" |"+hpid+" |"+htype+" |"+hstarted+" |"+hupdated+" |"+hhits+" |");
+    out.println("|"+hid+" |"+hpid+" |"+htype+" |"+hstarted+" |"+hupdated+" |"+hhits+" |"+hqueue+" |"+hrejected+" |");
     out.println(line);
 
     for (Statistics stats : statistics)
@@ -346,6 +348,8 @@ public class Launcher implements ILauncher
       String id = String.format(" %2s ",stats.id());
       String pid = String.format("%8s ",stats.pid());
       String hits = String.format("%12s ",stats.requests());
+      String queue = String.format("%8s ",stats.queued());
+      String rejected = String.format("%10s ",stats.rejected());
 
       String type = stats.http() ? "http" : "rest";
       if (stats.http() && !stats.httpmgr()) type += "(-)";
@@ -378,6 +382,8 @@ public class Launcher implements ILauncher
       out.print("|"+started+"");
       out.print("|"+uptime+"");
       out.print("|"+hits+"");
+      out.print("|"+queue+"");
+      out.print("|"+rejected+"");
 
       out.print("|");
       out.print(System.lineSeparator());
@@ -24,6 +24,9 @@ package database.rest.database;
 import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 public class Pool
@@ -40,6 +43,10 @@ public class Pool
   private final String username;
   private final String password;
   private final ArrayList<Database> pool;
+
+  // Not monitors, waiting virtual threads must not pin their carrier
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition free = lock.newCondition();
   private final static Logger logger = Logger.getLogger("rest");
 
 
@@ -128,9 +135,12 @@ public class Pool
   }
 
 
-  public synchronized void add(Database database)
+  public void add(Database database)
   {
-    pool.add(database);
+    lock.lock();
+
+    try {pool.add(database);}
+    finally {lock.unlock();}
   }
 
 
@@ -150,22 +160,33 @@ public class Pool
   }
 
 
-  public synchronized boolean remove(Database database, long touched)
+  public boolean remove(Database database, long touched)
   {
-    if (!pool.remove(database))
+    lock.lock();
+
+    try
     {
-      logger.warning("Unable to remove connection "+database);
-      return(false);
-    }
+      if (!pool.remove(database))
+      {
+        logger.warning("Unable to remove connection "+database);
+        return(false);
+      }
+
+      if (touched > 0 && touched != database.touched())
+      {
+        this.add(database);
+        logger.warning("Last minut connection reuse "+database);
+        return(false);
+      }
 
-    if (touched > 0 && touched != database.touched())
+      size--;
+      free.signalAll();
+    }
+    finally
     {
-      this.add(database);
-      logger.warning("Last minut connection reuse "+database);
-      return(false);
+      lock.unlock();
     }
 
-    size--;
     database.disconnect();
     logger.fine("Pool["+(proxy ? "proxy" : "fixed")+"] connection closed");
 
@@ -194,25 +215,49 @@ public class Pool
     long busy = this.busy() * 1000;
     long start = System.currentTimeMillis();
 
-    synchronized(this)
+    lock.lock();
+
+    try
     {
       while(pool.size() == 0 && size == max)
       {
         if (System.currentTimeMillis() - start > busy)
           throw new Exception("No more available connections in pool");
 
-        this.wait(1000);
+        free.await(1000,TimeUnit.MILLISECONDS);
       }
 
-      if (pool.size() == 0)
+      // Reserve the slot, connect outside the lock
+      if (pool.size() == 0) size++;
+      else database = pool.remove(0);
+    }
+    finally
+    {
+      lock.unlock();
+    }
+
+    if (database != null)
+      return(database);
+
+    try
+    {
+      database = connect();
+    }
+    catch (Exception e)
+    {
+      lock.lock();
+
+      try
       {
-        database = connect();
-        size++;
+        size--;
+        free.signalAll();
       }
-      else
+      finally
       {
-        database = pool.remove(0);
+        lock.unlock();
       }
+
+      throw e;
     }
 
     return(database);
@@ -234,7 +279,9 @@ public class Pool
       }
     }
 
-    synchronized(this)
+    lock.lock();
+
+    try
     {
       if (database.dangling())
       {
@@ -245,14 +292,20 @@ public class Pool
 
       database.touch();
       pool.add(0,database);
-      this.notifyAll();
+      free.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
     }
   }
 
 
   public void close()
   {
-    synchronized(this)
+    lock.lock();
+
+    try
     {
       closed = true;
       int size = this.pool.size();
@@ -266,12 +319,18 @@ public class Pool
         catch(Exception e) {;}
       }
     }
+    finally
+    {
+      lock.unlock();
+    }
   }
 
 
   public void validate()
   {
-    synchronized(this)
+    lock.lock();
+
+    try
     {
       int size = this.pool.size();
 
@@ -283,6 +342,10 @@ public class Pool
 
       this.size = pool.size();
     }
+    finally
+    {
+      lock.unlock();
+    }
   }
 
 
@@ -294,8 +357,10 @@ public class Pool
 
   ArrayList<Database> connections()
   {
-    synchronized(this)
-    {return(new ArrayList<Database>(pool));}
+    lock.lock();
+
+    try {return(new ArrayList<Database>(pool));}
+    finally {lock.unlock();}
   }
 
 
@@ -24,12 +24,17 @@ package database.rest.handlers;
 import java.util.logging.Logger;
 import database.rest.config.Config;
 import database.rest.servers.Server;
+import database.rest.cluster.MailBox;
 import database.rest.control.Launcher;
 import database.rest.cluster.PreAuthRecord;
 import database.rest.servers.rest.RESTClient;
 import database.rest.handlers.file.Deployment;
 import database.rest.servers.http.HTTPRequest;
 import database.rest.servers.http.HTTPResponse;
+import database.rest.servers.http.SSLHandshake;
+import database.rest.handlers.file.ContentCache;
+import database.rest.servers.http.HTTPBufferPool;
+import database.rest.servers.http.HTTPWaiterPool;
 import database.rest.handlers.rest.SessionManager;
 import database.rest.config.Handlers.HandlerProperties;
 
@@ -93,7 +98,7 @@ public class AdminHandler extends Handler
 
       case "status":
         String status = Launcher.getStatus(config());
-        response.setBody(status);
+        response.setBody(status+waiters()+engines(server)+buffers()+content()+mailbox()+handshakes());
         break;
 
       case "authenticate":
@@ -112,4 +117,88 @@ public class AdminHandler extends Handler
 
     return(response);
   }
+
+
+  private String waiters()
+  {
+    double[] rates = HTTPWaiterPool.rates();
+    int[] conns = HTTPWaiterPool.connections();
+
+    if (conns.length == 0)
+      return("");
+
+    String line = "Waiters:";
+    String nl = System.lineSeparator();
+
+    for (int i = 0; i < conns.length; i++)
+    {
+      if (i > 0) line += ",";
+      line += " "+i+": "+conns[i]+" ("+String.format("%.1f",rates[i])+")";
+    }
+
+    return(line+nl+nl);
+  }
+
+
+  private String engines(Server server)
+  {
+    RESTClient[] workers = server.workers();
+
+    if (workers.length == 0)
+      return("");
+
+    String line = "REST engines:";
+    String nl = System.lineSeparator();
+
+    for (int i = 0; i < workers.length; i++)
+    {
+      if (i > 0) line += ",";
+      RESTClient worker = workers[i];
+
+      if (worker == null || !worker.up()) line += " "+i+": down";
+      else line += " "+i+": "+worker.inflight()+" ("+worker.latency()+"us)";
+    }
+
+    return(line+nl+nl);
+  }
+
+
+  private String handshakes()
+  {
+    String nl = System.lineSeparator();
+
+    return("TLS handshakes: "+SSLHandshake.handshakes()+", Failed: "+SSLHandshake.failed()+", Avg: "+SSLHandshake.avgtime()+"us"+
+           ", Max: "+SSLHandshake.maxtime()+"us"+nl+nl);
+  }
+
+
+  private String content()
+  {
+    long kb = 1024;
+    String nl = System.lineSeparator();
+
+    return("Content cache: Hits: "+ContentCache.hits()+", Misses: "+ContentCache.misses()+
+           ", Evictions: "+ContentCache.evictions()+", Entries: "+ContentCache.entries()+
+           ", Size: "+ContentCache.size()/kb+"K of "+ContentCache.budget()/kb+"K"+nl+nl);
+  }
+
+
+  private String mailbox()
+  {
+    String nl = System.lineSeparator();
+
+    return("Mailbox extents: In use: "+MailBox.inuse()+", Allocated: "+MailBox.allocated()+
+           ", Failed: "+MailBox.failed()+", Reclaimed: "+MailBox.reclaimed()+nl+nl);
+  }
+
+
+  private String buffers()
+  {
+    long kb = 1024;
+    String nl = System.lineSeparator();
+
+    return("Network buffers: Hits: "+HTTPBufferPool.hits()+", Misses: "+HTTPBufferPool.misses()+
+           ", Pooled: "+HTTPBufferPool.pooled()/kb+"K of "+HTTPBufferPool.budget()/kb+"K, In use: "+HTTPBufferPool.inuse()/kb+"K"+
+           ", Peak: "+HTTPBufferPool.peak()/kb+"K"+nl+nl);
+  }
 }
\ No newline at end of file
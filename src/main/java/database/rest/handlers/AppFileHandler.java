@@ -22,6 +22,7 @@
 package database.rest.handlers;
 
 import java.io.File;
+import java.nio.file.Files;
 import org.json.JSONObject;
 import java.util.ArrayList;
 import java.io.FileInputStream;
@@ -33,8 +34,11 @@ import database.rest.servers.Server;
 import database.rest.handlers.rest.Request;
 import database.rest.handlers.file.PathUtil;
 import database.rest.servers.rest.RESTClient;
+import database.rest.servers.http.HTTPRange;
 import database.rest.servers.http.HTTPRequest;
 import database.rest.servers.http.HTTPResponse;
+import database.rest.servers.http.HTTPMultipart;
+import java.nio.file.StandardCopyOption;
 import database.rest.handlers.rest.JSONFormatter;
 import database.rest.config.Handlers.HandlerProperties;
 import static database.rest.handlers.rest.JSONFormatter.Type.*;
@@ -45,6 +49,7 @@ public class AppFileHandler extends Handler
   private final PathUtil path;
   private final CrossOrigin cors;
   private final Logger logger = Logger.getLogger("rest");
+  private final static int STREAM = 256 * 1024;
 
 
   public AppFileHandler(Config config, HandlerProperties properties) throws Exception
@@ -55,6 +60,13 @@ public class AppFileHandler extends Handler
   }
 
 
+  @Override
+  public boolean streaming()
+  {
+    return(true);
+  }
+
+
   @Override
   public HTTPResponse handle(HTTPRequest request) throws Exception
   {
@@ -156,6 +168,30 @@ public class AppFileHandler extends Handler
       return(response);
     }
 
+    response.setHeader("Accept-Ranges","bytes");
+    response.setLastModified(file.lastModified());
+
+    String etag = response.getHeader("ETag");
+    String modified = response.getHeader("Last-Modified");
+    long[][] ranges = HTTPRange.get(request,etag,modified,file.length());
+
+    if (ranges != null && ranges.length == 0)
+    {
+      response.setUnsatisfiable(file.length());
+      log(logger,request,response);
+      return(response);
+    }
+
+    if (file.length() > STREAM)
+    {
+      // Don't pull large files into memory
+      if (ranges == null) response.setBody(file);
+      else response.setRanges(file,ranges);
+
+      log(logger,request,response);
+      return(response);
+    }
+
     byte[] content = new byte[(int) file.length()];
     FileInputStream in = new FileInputStream(file);
 
@@ -166,7 +202,10 @@ public class AppFileHandler extends Handler
     }
 
     in.close();
-    response.setBody(content);
+
+    if (ranges == null) response.setBody(content);
+    else response.setRanges(content,ranges);
+
     log(logger,request,response);
 
     return(response);
@@ -175,6 +214,9 @@ public class AppFileHandler extends Handler
 
   private HTTPResponse upload(HTTPRequest request, HTTPResponse response) throws Exception
   {
+    if (request.multipart() != null)
+      return(upload(request.multipart(),response));
+
     JSONFormatter jfmt = new JSONFormatter();
     String ctype = request.getHeader("Content-Type");
     String boundary = "--"+ctype.substring(ctype.indexOf("boundary=")+9);
@@ -183,7 +225,6 @@ public class AppFileHandler extends Handler
     byte[] body = request.body();
     byte[] eoh = "\r\n\r\n".getBytes();
     byte[] pattern = boundary.getBytes();
-    String root = config().getREST().fileroot;
     boolean tmpfiles = config().getREST().tmpfiles;
 
     JSONObject options = null;
@@ -229,6 +270,46 @@ public class AppFileHandler extends Handler
       next += pattern.length + 1;
     }
 
+    return(upload(response,options,fields,files));
+  }
+
+
+  /**
+   *
+   * Body was parsed while it arrived, file parts are in temporary files
+   *
+   */
+  private HTTPResponse upload(HTTPMultipart multipart, HTTPResponse response) throws Exception
+  {
+    boolean tmpfiles = config().getREST().tmpfiles;
+
+    JSONObject options = null;
+    ArrayList<Field> files = new ArrayList<Field>();
+    ArrayList<Field> fields = new ArrayList<Field>();
+
+    for(HTTPMultipart.Part part : multipart.parts())
+    {
+      Field field = new Field(tmpfiles,part);
+
+      if (field.name != null && field.name.equals("options"))
+      {
+        options = Request.parse(new String(field.content));
+        continue;
+      }
+
+      if (field.srcfile != null) files.add(field);
+      else                       fields.add(field);
+    }
+
+    return(upload(response,options,fields,files));
+  }
+
+
+  private HTTPResponse upload(HTTPResponse response, JSONObject options, ArrayList<Field> fields, ArrayList<Field> files) throws Exception
+  {
+    JSONFormatter jfmt = new JSONFormatter();
+    String root = config().getREST().fileroot;
+
     jfmt.success(true);
 
     if (fields.size() > 0)
@@ -339,12 +420,13 @@ public class AppFileHandler extends Handler
 
   private static class Field
   {
-    int size = 0;
+    long size = 0;
     String name = null;
     String folder = "/";
     String srcfile = null;
     String dstfile = null;
     byte[] content = null;
+    File source = null;
     boolean tmpfile = false;
 
 
@@ -381,6 +463,17 @@ public class AppFileHandler extends Handler
     }
 
 
+    Field(boolean tmpfile, HTTPMultipart.Part part)
+    {
+      this.name = part.name();
+      this.tmpfile = tmpfile;
+      this.source = part.file();
+      this.srcfile = part.filename();
+      this.content = part.content();
+      this.size = part.size();
+    }
+
+
     void setOptions(String root, JSONObject options) throws Exception
     {
       if (options == null) return;
@@ -441,6 +534,13 @@ public class AppFileHandler extends Handler
         dest = new File(root + dstfile);
       }
 
+      if (source != null)
+      {
+        // Already on disk, just move it in place
+        Files.move(source.toPath(),dest.toPath(),StandardCopyOption.REPLACE_EXISTING);
+        return;
+      }
+
       FileOutputStream out = new FileOutputStream(dest);
       out.write(content);
       out.close();
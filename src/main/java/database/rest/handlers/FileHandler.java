@@ -21,12 +21,16 @@
 
 package database.rest.handlers;
 
+import java.io.File;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import database.rest.config.Config;
 import database.rest.handlers.file.PathUtil;
 import database.rest.handlers.file.Deployment;
+import database.rest.servers.http.HTTPRange;
+import database.rest.servers.http.HTTPStream;
 import database.rest.servers.http.HTTPRequest;
+import database.rest.servers.http.HTTPEncoding;
 import database.rest.servers.http.HTTPResponse;
 import database.rest.config.Handlers.HandlerProperties;
 import database.rest.handlers.file.Deployment.StaticFile;
@@ -81,9 +85,9 @@ public class FileHandler extends Handler
 
     StaticFile file = Deployment.get().get(path);
 
-    String caching = request.getHeader("Cache-Control");
     String encodings = request.getHeader("Accept-Encoding");
     String modified = request.getHeader("If-Modified-Since");
+    String etags = request.getHeader("If-None-Match");
 
     if (file == null)
     {
@@ -106,18 +110,33 @@ public class FileHandler extends Handler
       return(response);
     }
 
-    boolean reload = true;
-    String changed = Deployment.modstring();
+    String encoding = null;
 
-    if (modified != null && modified.equals(changed))
+    if (file.compressed)
     {
-      reload = false;
+      response.setHeader("Vary","Accept-Encoding");
+      encoding = HTTPEncoding.negotiate(encodings,file.encodings());
+    }
+
+    String etag = file.etag(encoding);
 
-      if (caching != null && (caching.contains("max-age=0") || caching.contains("no-cache")))
-        reload = true;
+    // If-None-Match takes precedence over If-Modified-Since
+    boolean unchanged = false;
+
+    if (etags != null) unchanged = matches(etags,etag);
+    else if (modified != null)
+    {
+      long since = Deployment.parse(modified);
+      unchanged = since >= 0 && Deployment.parse(file.modified) <= since;
     }
 
-    if (!reload)
+    response.setHeader("ETag",etag);
+    response.setHeader("Last-Modified",file.modified);
+
+    if (file.immutable)
+      response.setHeader("Cache-Control","public, max-age=31536000, immutable");
+
+    if (unchanged)
     {
       // Send Not modified
       response.setResponse(304);
@@ -125,36 +144,96 @@ public class FileHandler extends Handler
       return(response);
     }
 
-    boolean gzip = false;
-    byte[] content = null;
+    String ext = file.fileext();
+    String mimetype = config().getHTTP().mimetypes.get(ext);
 
-    if (file.compressed)
-      gzip = (encodings != null && encodings.contains("gzip"));
+    response.setContentType(mimetype);
+
+    if (!file.cache && file.compressed && encoding == null)
+    {
+      inflate(request,response,file);
+      return(null);
+    }
 
     try
     {
-      content = file.get(gzip);
-      if (gzip) response.setHeader("Content-Encoding","gzip");
+      response.setHeader("Accept-Ranges","bytes");
+      if (encoding != null) response.setHeader("Content-Encoding",encoding);
+
+      // Cached files are kept in memory, others are sent from disk
+
+      if (file.cache)
+      {
+        byte[] content = file.get(encoding);
+        long[][] ranges = HTTPRange.get(request,etag,file.modified,content.length);
+
+        if (ranges == null) response.setBody(content);
+        else if (ranges.length == 0) response.setUnsatisfiable(content.length);
+        else response.setRanges(content,ranges);
+      }
+      else
+      {
+        File content = file.file(encoding);
+        long[][] ranges = HTTPRange.get(request,etag,file.modified,content.length());
+
+        if (ranges == null) response.setBody(content);
+        else if (ranges.length == 0) response.setUnsatisfiable(content.length());
+        else response.setRanges(content,ranges);
+      }
     }
     catch (Exception e)
     {
       logger.log(Level.SEVERE,e.getMessage(),e);
 
+      response = new HTTPResponse();
       response.setResponse(500);
       response.setContentType("text/html");
       response.setBody("<b>Internal Server Error</b>");
       return(response);
     }
 
-    String ext = file.fileext();
-    String mimetype = config().getHTTP().mimetypes.get(ext);
+    log(logger,request,response);
+    return(response);
+  }
 
-    response.setBody(content);
-    response.setContentType(mimetype);
-    response.setLastModified(Deployment.modstring(),Deployment.modified());
+
+  /**
+   *
+   * Clients not accepting any compression, gets the compressed copy
+   * decompressed while it is sent, using chunked encoding.
+   *
+   */
+  private void inflate(HTTPRequest request, HTTPResponse response, StaticFile file) throws Exception
+  {
+    HTTPStream out = request.stream(response);
+
+    try
+    {
+      file.inflate(out);
+    }
+    finally
+    {
+      out.close();
+    }
 
     log(logger,request,response);
-    return(response);
+  }
+
+
+  // Weak comparison, as required for If-None-Match
+  private boolean matches(String etags, String etag)
+  {
+    for(String tag : etags.split(","))
+    {
+      tag = tag.trim();
+
+      if (tag.equals("*")) return(true);
+      if (tag.startsWith("W/")) tag = tag.substring(2);
+
+      if (tag.equals(etag)) return(true);
+    }
+
+    return(false);
   }
 
 
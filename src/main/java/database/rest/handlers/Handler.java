@@ -22,6 +22,7 @@
 package database.rest.handlers;
 
 import database.rest.config.Config;
+import java.util.concurrent.CompletableFuture;
 import database.rest.servers.http.HTTPRequest;
 import database.rest.servers.http.HTTPResponse;
 import database.rest.config.Handlers.HandlerProperties;
@@ -52,5 +53,30 @@ public abstract class Handler
   }
 
 
+  /**
+   *
+   * Large multipart bodies are delivered as parts, through
+   * HTTPRequest.multipart(), instead of in the body.
+   *
+   */
+  public boolean streaming()
+  {
+    return(false);
+  }
+
+
   public abstract HTTPResponse handle(HTTPRequest request) throws Exception;
+
+
+  /**
+   *
+   * Handlers waiting on other processes can return the response
+   * before it is completed. It is then written when it completes,
+   * without holding a worker thread meanwhile.
+   *
+   */
+  public CompletableFuture<HTTPResponse> handleAsync(HTTPRequest request) throws Exception
+  {
+    return(CompletableFuture.completedFuture(handle(request)));
+  }
 }
\ No newline at end of file
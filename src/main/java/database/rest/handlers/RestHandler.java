@@ -31,6 +31,7 @@ import database.rest.handlers.rest.Guid;
 import database.rest.handlers.rest.Rest;
 import database.rest.handlers.file.PathUtil;
 import database.rest.servers.rest.RESTClient;
+import java.util.concurrent.CompletableFuture;
 import database.rest.servers.http.HTTPRequest;
 import database.rest.servers.http.HTTPResponse;
 import database.rest.handlers.rest.JSONFormatter;
@@ -54,6 +55,19 @@ public class RestHandler extends Handler
 
   @Override
   public HTTPResponse handle(HTTPRequest request) throws Exception
+  {
+    return(handleAsync(request).get());
+  }
+
+
+  /**
+   *
+   * Requests forwarded to a RESTServer complete when the response
+   * arrives, the worker thread is released meanwhile.
+   *
+   */
+  @Override
+  public CompletableFuture<HTTPResponse> handleAsync(HTTPRequest request) throws Exception
   {
     Server server = request.server();
     HTTPResponse response = new HTTPResponse();
@@ -73,7 +87,7 @@ public class RestHandler extends Handler
       jfmt.add("message","Path not mapped to any resource");
 
       response.setBody(jfmt.toString());
-      return(response);
+      return(CompletableFuture.completedFuture(response));
     }
 
     String errm = cors.allow(request);
@@ -82,7 +96,7 @@ public class RestHandler extends Handler
     {
       response.setBody(errm);
       log(logger,request,response);
-      return(response);
+      return(CompletableFuture.completedFuture(response));
     }
 
     cors.addHeaders(request,response);
@@ -106,16 +120,17 @@ public class RestHandler extends Handler
         response.setBody(jfmt.toString());
         logger.warning("No RESTServer's connected");
 
-        return(response);
+        return(CompletableFuture.completedFuture(response));
       }
 
       String host = request.remote();
-      byte[] data = client.send(host,request.page());
-
-      response = new HTTPResponse(data);
-      log(logger,request,response);
 
-      return(response);
+      return(client.sendAsync(host,request.page()).thenApply((data) ->
+      {
+        HTTPResponse reply = new HTTPResponse(data);
+        log(logger,request,reply);
+        return(reply);
+      }));
     }
 
     setClient(config(),request,response);
@@ -143,7 +158,7 @@ public class RestHandler extends Handler
       if (logger.getLevel() == Level.FINE) logger.fine("/OPTIONS");
       if (logger.getLevel() == Level.FINEST) log(logger,request,response);
 
-      return(response);
+      return(CompletableFuture.completedFuture(response));
     }
 
     byte[] body = request.body();
@@ -168,7 +183,7 @@ public class RestHandler extends Handler
     if (!rest.isPing() || logger.getLevel() == Level.FINEST)
       log(logger,request,response);
 
-    return(response);
+    return(CompletableFuture.completedFuture(response));
   }
 
 
@@ -0,0 +1,185 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package database.rest.handlers.file;
+
+import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ *
+ * Contents of static files, shared by all deployments in the process.
+ * The cache is bounded by a byte budget. When full, the least recently
+ * used entries are evicted. Entries that would take more than a quarter
+ * of the budget are never admitted, so a single large file cannot flush
+ * all the small ones.
+ *
+ * Compressed files are cached in each representation requested,
+ * the precompressed variants as is, and the decompressed content.
+ *
+ */
+public class ContentCache
+{
+  private static long size = 0;
+  private static long budget = 64 * 1024 * 1024;
+
+  private final static Object LOCK = new Object();
+
+  private final static LongAdder hits = new LongAdder();
+  private final static LongAdder misses = new LongAdder();
+  private final static LongAdder evictions = new LongAdder();
+
+  private final static LinkedHashMap<String,byte[]> entries =
+    new LinkedHashMap<String,byte[]>(64,0.75f,true);
+
+
+  public static void setSize(long budget)
+  {
+    synchronized(LOCK)
+    {
+      ContentCache.budget = budget;
+      evict();
+    }
+  }
+
+
+  static String key(String path, String encoding)
+  {
+    if (encoding == null) return(path+":identity");
+    else                  return(path+":"+encoding);
+  }
+
+
+  static byte[] get(String key)
+  {
+    byte[] content = null;
+
+    synchronized(LOCK)
+    {content = entries.get(key);}
+
+    if (content != null) hits.increment();
+    else                 misses.increment();
+
+    return(content);
+  }
+
+
+  /**
+   *
+   * Whether content of this size will be admitted at all
+   *
+   */
+  static boolean admits(long size)
+  {
+    return(size <= budget / 4);
+  }
+
+
+  static void put(String key, byte[] content)
+  {
+    if (!admits(content.length))
+      return;
+
+    synchronized(LOCK)
+    {
+      byte[] prev = entries.put(key,content);
+
+      size += content.length;
+      if (prev != null) size -= prev.length;
+
+      evict();
+    }
+  }
+
+
+  /**
+   *
+   * Drop everything, i.e. when a new deployment is indexed
+   *
+   */
+  static void clear()
+  {
+    synchronized(LOCK)
+    {
+      entries.clear();
+      size = 0;
+    }
+  }
+
+
+  // Must be called holding LOCK
+  private static void evict()
+  {
+    Iterator<Map.Entry<String,byte[]>> iterator = entries.entrySet().iterator();
+
+    while(size > budget && iterator.hasNext())
+    {
+      Map.Entry<String,byte[]> entry = iterator.next();
+
+      size -= entry.getValue().length;
+      iterator.remove();
+
+      evictions.increment();
+    }
+  }
+
+
+  public static long hits()
+  {
+    return(hits.sum());
+  }
+
+
+  public static long misses()
+  {
+    return(misses.sum());
+  }
+
+
+  public static long evictions()
+  {
+    return(evictions.sum());
+  }
+
+
+  public static int entries()
+  {
+    synchronized(LOCK)
+    {return(entries.size());}
+  }
+
+
+  public static long size()
+  {
+    synchronized(LOCK)
+    {return(size);}
+  }
+
+
+  public static long budget()
+  {
+    return(budget);
+  }
+}
@@ -23,20 +23,33 @@ package database.rest.handlers.file;
 
 import java.io.File;
 import java.util.Date;
+import java.util.Locale;
+import java.time.Instant;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.nio.file.Files;
 import java.io.Serializable;
+import java.io.OutputStream;
+import java.time.ZoneOffset;
+import java.util.zip.Deflater;
 import java.io.FileInputStream;
+import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.text.SimpleDateFormat;
+import java.security.MessageDigest;
 import database.rest.config.Config;
-import java.io.ByteArrayInputStream;
+import java.io.InvalidClassException;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ForkJoinPool;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.RecursiveAction;
 import database.rest.config.HTTP.FilePattern;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Deployment
@@ -48,19 +61,28 @@ public class Deployment
   private final Config config;
 
   private final ArrayList<FilePattern> cache;
+  private final ArrayList<FilePattern> immutable;
+
+  private final String coders;
+  private final ArrayList<Encoder> encoders;
   private final ArrayList<FilePattern> compression;
 
   private final static Logger logger = Logger.getLogger("http");
 
   private int grace = 0;
   private long synched = 0;
+  private long deployed = 0;
+  private boolean watching = false;
+  private DeploymentWatcher watcher = null;
   private long modified = 0;
   private Date moddate = null;
   private String modstring = null;
   private ConcurrentHashMap<String,StaticFile> index = null;
 
   private static final String sep = File.separator;
-  private static final SimpleDateFormat format = new SimpleDateFormat("EEE, d MMM YYYY hh:mm:ss z");
+  // IMF-fixdate (RFC 7231), immutable and thread-safe
+  private static final DateTimeFormatter format =
+    DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'",Locale.US).withZone(ZoneOffset.UTC);
 
 
   public static Deployment get()
@@ -84,6 +106,51 @@ public class Deployment
     this.home = this.config.getHTTP().getAppPath();
     this.deploy = this.config.getHTTP().getTmpPath();
     this.compression = this.config.getHTTP().compression;
+    this.immutable = this.config.getHTTP().immutable;
+    ContentCache.setSize(this.config.getHTTP().cachesize);
+
+    this.encoders = encoders(this.config.getHTTP().encoders);
+
+    String coders = "gzip";
+    for(Encoder encoder : encoders) coders += ","+encoder.encoding();
+
+    this.coders = coders;
+  }
+
+
+  private static ArrayList<Encoder> encoders(LinkedHashMap<String,String> config)
+  {
+    ArrayList<Encoder> encoders = new ArrayList<Encoder>();
+
+    for(String encoding : config.keySet())
+    {
+      String cls = config.get(encoding);
+
+      try
+      {
+        if (cls == null && encoding.equals("deflate"))
+        {
+          encoders.add(new DeflateEncoder());
+          continue;
+        }
+
+        if (cls == null)
+          throw new Exception("No class given for encoding "+encoding);
+
+        Encoder encoder = (Encoder) Class.forName(cls).getDeclaredConstructor().newInstance();
+
+        if (!encoder.encoding().equals(encoding))
+          throw new Exception(cls+" produces "+encoder.encoding()+", not "+encoding);
+
+        encoders.add(encoder);
+      }
+      catch (Throwable e)
+      {
+        logger.warning("Encoder "+encoding+" not available: "+e.getMessage());
+      }
+    }
+
+    return(encoders);
   }
 
 
@@ -99,6 +166,18 @@ public class Deployment
   }
 
 
+  /**
+   *
+   * Seconds since epoch of an HTTP date, -1 if not IMF-fixdate
+   *
+   */
+  public static long parse(String date)
+  {
+    try {return(Instant.from(format.parse(date.trim())).getEpochSecond());}
+    catch (Exception e) {return(-1);}
+  }
+
+
   public StaticFile get(String path) throws Exception
   {
     if (this.index == null)
@@ -139,30 +218,78 @@ public class Deployment
 
     logger.info("Indexing website");
 
-    ConcurrentHashMap<String,StaticFile> index =
-      new ConcurrentHashMap<String,StaticFile>();
+    ConcurrentHashMap<String,StaticFile> index = null;
 
-    FileInputStream fin = new FileInputStream(deployment + sep + ".index");
-    ObjectInputStream oin = new ObjectInputStream(fin);
+    try
+    {
+      index = load(deployment);
+    }
+    catch (InvalidClassException e)
+    {
+      // Deployed by an older version, deploy again
+      logger.info("Index of deployment is outdated, redeploying");
+
+      delete(new File(deployment));
 
-    index = (ConcurrentHashMap<String,StaticFile>) oin.readObject();
-    oin.close();
+      deploy();
+      return(true);
+    }
+
+    ContentCache.clear();
 
     this.index = index;
     this.modified = latest;
     this.moddate = modified;
-    this.modstring = format.format(modified);
+    this.modstring = format.format(modified.toInstant());
 
     return(true);
   }
 
 
+  @SuppressWarnings("unchecked")
+  private ConcurrentHashMap<String,StaticFile> load(String deployment) throws Exception
+  {
+    FileInputStream fin = new FileInputStream(deployment + sep + ".index");
+    ObjectInputStream oin = new ObjectInputStream(fin);
+
+    try
+    {
+      return((ConcurrentHashMap<String,StaticFile>) oin.readObject());
+    }
+    finally
+    {
+      oin.close();
+    }
+  }
+
+
   public synchronized void redeploy() throws Exception
   {
+    if (grace <= 0)
+      return;
+
+    boolean started = watching;
+    if (!watching) watch();
+
+    if (started && watcher != null && watcher.isAlive())
+    {
+      long changed = watcher.changed();
+
+      // Nothing changed since last deploy, or still changing
+      if (changed <= deployed) return;
+      if (System.currentTimeMillis() - changed < grace*1000) return;
+
+      logger.info("Redeploy");
+
+      this.synched = 0;
+      deploy();
+      return;
+    }
+
     sync();
     File home = new File(this.home);
 
-    if (grace > 0 && home.lastModified() > this.modified + grace*1000)
+    if (home.lastModified() > this.modified + grace*1000)
     {
       logger.info("Redeploy");
       deploy();
@@ -170,8 +297,32 @@ public class Deployment
   }
 
 
+  /**
+   *
+   * Start watching the application folder. Changes made before the
+   * watcher is started, are found by polling once more.
+   *
+   */
+  private void watch()
+  {
+    watching = true;
+
+    try
+    {
+      this.watcher = new DeploymentWatcher(this.home);
+      this.watcher.start();
+    }
+    catch (Exception e)
+    {
+      this.watcher = null;
+      logger.warning("Unable to watch "+this.home+", polling for changes: "+e.getMessage());
+    }
+  }
+
+
   public synchronized void deploy() throws Exception
   {
+    this.deployed = System.currentTimeMillis();
     sync();
 
     Date modified = new Date();
@@ -190,10 +341,20 @@ public class Deployment
 
     if (!(new File(dep).exists()))
     {
-      if (logger.getHandlers().length < 0)
-        logger.info("Deploying website");
+      logger.info("Deploying website");
+      long time = System.currentTimeMillis();
+
+      ArrayList<Source> files = new ArrayList<Source>();
+      scan(files,this.home,tmp,dep);
 
-      deploy(index,this.home,tmp,dep);
+      // Unchanged files are taken from the current deployment
+      ConcurrentHashMap<String,StaticFile> previous = previous();
+
+      Deployer deployer = new Deployer(files,index,previous,0,files.size());
+      ForkJoinPool.commonPool().invoke(deployer);
+
+      time = System.currentTimeMillis() - time;
+      logger.info("Deployed "+files.size()+" files, "+deployer.reused.get()+" unchanged, in "+time+" ms");
 
       File deployed = new File(tmp);
       deployed.renameTo(new File(dep));
@@ -206,10 +367,12 @@ public class Deployment
       oout.close();
       fout.close();
 
+      ContentCache.clear();
+
       this.index = index;
       this.moddate = modified;
       this.modified = home.lastModified();
-      this.modstring = format.format(modified);
+      this.modstring = format.format(modified.toInstant());
 
       synchronized(this) {this.notifyAll();}
       this.cleanup();
@@ -217,7 +380,7 @@ public class Deployment
   }
 
 
-  private void deploy(ConcurrentHashMap<String,StaticFile> index, String fr, String to, String dest) throws Exception
+  private void scan(ArrayList<Source> files, String fr, String to, String dest) throws Exception
   {
     File source = new File(fr);
     File target = new File(to);
@@ -232,40 +395,155 @@ public class Deployment
       String des = dest + sep + entry;
 
       File deploy = new File(dfr);
-      if (deploy.isDirectory())
+
+      if (deploy.isDirectory()) scan(files,dfr,dto,des);
+      else files.add(new Source(deploy,dfr.substring(this.home.length()),dto,des));
+    }
+  }
+
+
+  /**
+   *
+   * The index of the current deployment, if any
+   *
+   */
+  private ConcurrentHashMap<String,StaticFile> previous()
+  {
+    if (this.index != null)
+      return(this.index);
+
+    try
+    {
+      long latest = latest();
+      if (latest == 0) return(null);
+      return(load(this.deploy + sep + latest));
+    }
+    catch (Exception e)
+    {
+      return(null);
+    }
+  }
+
+
+  private boolean deploy(Source src, ConcurrentHashMap<String,StaticFile> index, ConcurrentHashMap<String,StaticFile> previous) throws Exception
+  {
+    File deploy = src.file;
+
+    boolean reused = false;
+    boolean cache = false;
+    boolean compress = false;
+    boolean immutable = false;
+
+    long size = deploy.length();
+    long mtime = deploy.lastModified();
+
+    String etag = null;
+    String modified = null;
+    String[] encodings = new String[0];
+    String vpath = src.path.replaceAll("\\\\","/");
+
+    for(FilePattern fpatrn : this.compression)
+    {
+      if (size >= fpatrn.size && deploy.getName().matches(fpatrn.pattern))
+        compress = true;
+    }
+
+    StaticFile prev = previous == null ? null : previous.get(vpath);
+
+    if (prev != null && prev.unchanged(size,mtime,compress,coders))
+    {
+      // Same size, time and treatment, link or copy what was deployed
+      reused = link(prev.actpath,src.target);
+
+      for(String encoding : prev.encodings())
       {
-        deploy(index,dfr,dto,des);
+        if (reused && !encoding.equals("gzip"))
+          reused = link(prev.actpath+"."+encoding,src.target+"."+encoding);
       }
-      else
+
+      if (reused)
       {
-        boolean cache = false;
-        boolean compress = false;
-        long size = deploy.length();
-        dfr = dfr.substring(this.home.length());
+        encodings = prev.encodings();
+        etag = prev.etag;
+        modified = prev.modified;
+        size = new File(src.target).length();
+      }
+    }
 
-        for(FilePattern fpatrn : this.compression)
-        {
-          if (size >= fpatrn.size && deploy.getName().matches(fpatrn.pattern))
-            compress = true;
-        }
+    if (!reused)
+    {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
 
-        if (!compress) size = copy(deploy,dto);
-        else           size = compress(deploy,dto);
+      if (!compress) size = copy(deploy,src.target,digest);
+      else           size = compress(deploy,src.target,digest);
 
-        for(FilePattern fpatrn : this.cache)
-        {
-          if (size <= fpatrn.size && deploy.getName().matches(fpatrn.pattern))
-            cache = true;
-        }
+      if (compress)
+        encodings = encode(deploy,src.target,size);
 
-        String vpath = dfr.replaceAll("\\\\","/");
-        index.put(vpath,new StaticFile(vpath,des,cache,compress));
-      }
+      etag = hex(digest.digest(),16);
+      modified = format.format(Instant.ofEpochMilli(mtime));
+    }
+
+    for(FilePattern fpatrn : this.cache)
+    {
+      if (size <= fpatrn.size && deploy.getName().matches(fpatrn.pattern))
+        cache = true;
+    }
+
+    // Files the cache will not admit would be read into memory on every
+    // request. The source is the largest representation of a compressed file.
+    if (cache && !ContentCache.admits(deploy.length()))
+      cache = false;
+
+    for(FilePattern fpatrn : this.immutable)
+    {
+      if (deploy.getName().matches(fpatrn.pattern))
+        immutable = true;
+    }
+
+    StaticFile file = new StaticFile(vpath,src.dest,etag,modified,cache,compress,immutable);
+
+    file.srcsize = deploy.length();
+    file.srcmod = mtime;
+    file.coders = coders;
+    file.encodings = encodings;
+
+    index.put(vpath,file);
+    return(reused);
+  }
+
+
+  private boolean link(String from, String to)
+  {
+    Path source = new File(from).toPath();
+    Path target = new File(to).toPath();
+
+    if (!Files.exists(source))
+      return(false);
+
+    try
+    {
+      Files.createLink(target,source);
+      return(true);
+    }
+    catch (Exception e)
+    {
+      // Hard links not supported
+    }
+
+    try
+    {
+      Files.copy(source,target,StandardCopyOption.REPLACE_EXISTING);
+      return(true);
+    }
+    catch (Exception e)
+    {
+      return(false);
     }
   }
 
 
-  public int copy(File ifile, String file) throws Exception
+  public int copy(File ifile, String file, MessageDigest digest) throws Exception
   {
     FileInputStream in = new FileInputStream(ifile);
     FileOutputStream out = new FileOutputStream(file);
@@ -277,6 +555,7 @@ public class Deployment
     {
       read = in.read(buf);
       if (read > 0) out.write(buf,0,read);
+      if (read > 0) digest.update(buf,0,read);
     }
 
     out.close();
@@ -286,11 +565,63 @@ public class Deployment
   }
 
 
-  public int compress(File ifile, String file) throws Exception
+  /**
+   *
+   * Write the other precompressed variants next to the gzip'ed copy.
+   * Variants not smaller than the source are dropped. Returns the available
+   * encodings, smallest first. Gzip is best supported, other variants are
+   * only preferred if at least 1% smaller (deflate only saves the header).
+   *
+   */
+  private String[] encode(File source, String target, long gzsize) throws Exception
+  {
+    ArrayList<Long> sizes = new ArrayList<Long>();
+    ArrayList<String> encodings = new ArrayList<String>();
+
+    sizes.add(gzsize - gzsize/100);
+    encodings.add("gzip");
+
+    for(Encoder encoder : encoders)
+    {
+      String variant = target + "." + encoder.encoding();
+
+      FileInputStream in = new FileInputStream(source);
+      FileOutputStream out = new FileOutputStream(variant);
+
+      try
+      {
+        encoder.encode(in,out);
+      }
+      finally
+      {
+        out.close();
+        in.close();
+      }
+
+      long size = new File(variant).length();
+
+      if (size >= source.length())
+      {
+        new File(variant).delete();
+        continue;
+      }
+
+      int pos = 0;
+      while(pos < sizes.size() && sizes.get(pos) <= size) pos++;
+
+      sizes.add(pos,size);
+      encodings.add(pos,encoder.encoding());
+    }
+
+    return(encodings.toArray(new String[0]));
+  }
+
+
+  public int compress(File ifile, String file, MessageDigest digest) throws Exception
   {
     FileInputStream in = new FileInputStream(ifile);
     FileOutputStream out = new FileOutputStream(file);
-    GZIPOutputStream gout = new GZIPOutputStream(out);
+    GZIPOutputStream gout = new BestGZIPOutputStream(out);
 
     int read = 0;
     byte[] buf = new byte[4096];
@@ -299,6 +630,7 @@ public class Deployment
     {
       read = in.read(buf);
       if (read > 0) gout.write(buf,0,read);
+      if (read > 0) digest.update(buf,0,read);
     }
 
     gout.close();
@@ -376,6 +708,17 @@ public class Deployment
   }
 
 
+  private static String hex(byte[] bytes, int len)
+  {
+    StringBuilder str = new StringBuilder(2*len);
+
+    for (int i = 0; i < len; i++)
+      str.append(String.format("%02x",bytes[i]));
+
+    return(str.toString());
+  }
+
+
   private void cleanup()
   {
     File deployed = new File(this.deploy);
@@ -419,26 +762,129 @@ public class Deployment
   }
 
 
+  private static class BestGZIPOutputStream extends GZIPOutputStream
+  {
+    BestGZIPOutputStream(OutputStream out) throws Exception
+    {
+      super(out,65536);
+      def.setLevel(Deflater.BEST_COMPRESSION);
+    }
+  }
+
+
+  private static class Source
+  {
+    final File file;
+    final String path;
+    final String dest;
+    final String target;
+
+    Source(File file, String path, String target, String dest)
+    {
+      this.file = file;
+      this.path = path;
+      this.dest = dest;
+      this.target = target;
+    }
+  }
+
+
+  /**
+   *
+   * Copies and compresses files in parallel, splitting the list
+   * of files until each task has a handful left.
+   *
+   */
+  private class Deployer extends RecursiveAction
+  {
+    private final int lo;
+    private final int hi;
+    private final AtomicInteger reused;
+    private final ArrayList<Source> files;
+    private final ConcurrentHashMap<String,StaticFile> index;
+    private final ConcurrentHashMap<String,StaticFile> previous;
+
+    private static final long serialVersionUID = 4170125367338719423L;
+    private static final int BATCH = 8;
+
+
+    Deployer(ArrayList<Source> files, ConcurrentHashMap<String,StaticFile> index, ConcurrentHashMap<String,StaticFile> previous, int lo, int hi)
+    {
+      this(files,index,previous,lo,hi,new AtomicInteger());
+    }
+
+
+    private Deployer(ArrayList<Source> files, ConcurrentHashMap<String,StaticFile> index, ConcurrentHashMap<String,StaticFile> previous, int lo, int hi, AtomicInteger reused)
+    {
+      this.lo = lo;
+      this.hi = hi;
+      this.files = files;
+      this.index = index;
+      this.reused = reused;
+      this.previous = previous;
+    }
+
+
+    @Override
+    protected void compute()
+    {
+      if (hi - lo > BATCH)
+      {
+        int mid = (lo + hi) >>> 1;
+
+        invokeAll(new Deployer(files,index,previous,lo,mid,reused),
+                  new Deployer(files,index,previous,mid,hi,reused));
+        return;
+      }
+
+      for (int i = lo; i < hi; i++)
+      {
+        try
+        {
+          if (deploy(files.get(i),index,previous))
+            reused.incrementAndGet();
+        }
+        catch (Exception e)
+        {
+          throw new RuntimeException("Deployment of "+files.get(i).path+" failed: "+e.getMessage(),e);
+        }
+      }
+    }
+  }
+
+
   public static class StaticFile implements Serializable
   {
+    public final String etag;
     public final String fileext;
     public final String virpath;
     public final String actpath;
+    public final String modified;
 
     public final boolean cache;
+    public final boolean immutable;
     public final boolean compressed;
 
-    private transient byte[] content = null;
+    // The source, when deployed
+    private long srcsize = -1;
+    private long srcmod = -1;
+    private String coders = null;
+
+    // Precompressed variants, smallest first
+    private String[] encodings = new String[0];
 
     @SuppressWarnings("compatibility:-4436880408631246090")
-    private static final long serialVersionUID = 5613263707445370115L;
+    private static final long serialVersionUID = 7742317658108922607L;
 
 
-    StaticFile(String virpath, String actpath, boolean cache, boolean compressed)
+    StaticFile(String virpath, String actpath, String etag, String modified, boolean cache, boolean compressed, boolean immutable)
     {
+      this.etag = etag;
       this.cache = cache;
       this.virpath = virpath;
       this.actpath = actpath;
+      this.modified = modified;
+      this.immutable = immutable;
       this.compressed = compressed;
       int pos = virpath.lastIndexOf('.');
 
@@ -447,24 +893,115 @@ public class Deployment
     }
 
 
-    public byte[] get(boolean gzip) throws Exception
+    /**
+     *
+     * The content in the given encoding (null for identity)
+     *
+     */
+    public byte[] get(String encoding) throws Exception
     {
-      boolean usecache = true;
-      if (compressed && !gzip) usecache = false;
-      if (usecache && content != null) return(content);
+      if (!compressed) encoding = null;
+      String key = ContentCache.key(actpath,encoding);
+
+      byte[] content = null;
+      if (cache) content = ContentCache.get(key);
+      if (content != null) return(content);
 
-      File file = new File(actpath);
+      File file = new File(path(encoding));
+
+      if (!file.exists())
+        throw new Exception("File "+file+" not found");
+
+      content = read(file,encoding);
+      if (cache) ContentCache.put(key,content);
+
+      return(content);
+    }
+
+
+    /**
+     *
+     * The file itself, when it can be sent as is.
+     * Compressed files have no copy in identity encoding.
+     *
+     */
+    public File file(String encoding) throws Exception
+    {
+      if (!compressed) encoding = null;
+
+      if (compressed && encoding == null)
+        return(null);
+
+      File file = new File(path(encoding));
 
       if (!file.exists())
         throw new Exception("File "+actpath+" not found");
 
-      gzip = gzip && compressed;
-      byte[] content = read(file,gzip);
+      return(file);
+    }
 
-      if (cache && usecache)
-        this.content = content;
 
-      return(content);
+    /**
+     *
+     * Decompress a compressed copy while writing it
+     *
+     */
+    public void inflate(OutputStream out) throws Exception
+    {
+      GZIPInputStream gzin = new GZIPInputStream(new FileInputStream(actpath));
+
+      try
+      {
+        gzin.transferTo(out);
+      }
+      finally
+      {
+        gzin.close();
+      }
+    }
+
+
+    /**
+     *
+     * Source unchanged since it was deployed like this
+     *
+     */
+    boolean unchanged(long size, long mtime, boolean compress, String coders)
+    {
+      if (size != srcsize || mtime != srcmod) return(false);
+      return(compress == compressed && coders.equals(this.coders));
+    }
+
+
+    /**
+     *
+     * The encodings available for a compressed file
+     *
+     */
+    public String[] encodings()
+    {
+      if (encodings == null) return(new String[0]);
+      return(encodings);
+    }
+
+
+    private String path(String encoding)
+    {
+      if (encoding == null || encoding.equals("gzip")) return(actpath);
+      else return(actpath+"."+encoding);
+    }
+
+
+    /**
+     *
+     * Strong validator, from the content of the source file.
+     * Each compressed representation gets its own tag.
+     *
+     */
+    public String etag(String encoding)
+    {
+      if (!compressed || encoding == null) return("\""+etag+"\"");
+      else return("\""+etag+"-"+encoding+"\"");
     }
 
 
@@ -474,8 +1011,17 @@ public class Deployment
     }
 
 
-    private byte[] read(File file, boolean gzip) throws Exception
+    private byte[] read(File file, String encoding) throws Exception
     {
+      if (compressed && encoding == null)
+      {
+        // Decompress without reading the compressed copy first
+        GZIPInputStream gzin = new GZIPInputStream(new FileInputStream(file));
+
+        try {return(gzin.readAllBytes());}
+        finally {gzin.close();}
+      }
+
       byte[] content = new byte[(int) file.length()];
       FileInputStream in = new FileInputStream(file);
 
@@ -485,18 +1031,6 @@ public class Deployment
       if (read != content.length)
         throw new Exception("Read "+actpath+" returned partial result");
 
-      if (compressed && !gzip)
-      {
-        // Decompress
-        ByteArrayInputStream bin = new ByteArrayInputStream(content);
-
-        GZIPInputStream gzin = new GZIPInputStream(bin);
-        content = gzin.readAllBytes();
-
-        bin.close();
-        gzin.close();
-      }
-
       return(content);
     }
   }
@@ -0,0 +1,128 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package database.rest.handlers.file;
+
+import java.io.File;
+import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchEvent;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchService;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+
+/**
+ *
+ * Watches the application folder, and all folders below it, and records
+ * when anything was last changed. This replaces walking the whole tree
+ * to find the latest modification time, just to detect that nothing changed.
+ * The WatchService is not recursive, folders are registered as they appear.
+ *
+ */
+class DeploymentWatcher extends Thread
+{
+  private volatile long changed = 0;
+
+  private final WatchService watcher;
+  private final HashMap<WatchKey,Path> keys = new HashMap<WatchKey,Path>();
+  private final static Logger logger = Logger.getLogger("http");
+
+
+  DeploymentWatcher(String home) throws Exception
+  {
+    this.watcher = FileSystems.getDefault().newWatchService();
+    register(new File(home));
+
+    this.setDaemon(true);
+    this.setName("DeploymentWatcher");
+  }
+
+
+  /**
+   *
+   * Time (millis) of the latest change seen
+   *
+   */
+  long changed()
+  {
+    return(changed);
+  }
+
+
+  private void register(File folder) throws Exception
+  {
+    Path path = folder.toPath();
+    keys.put(path.register(watcher,ENTRY_CREATE,ENTRY_DELETE,ENTRY_MODIFY),path);
+
+    File[] entries = folder.listFiles();
+    if (entries == null) return;
+
+    for(File entry : entries)
+    {
+      if (entry.isDirectory())
+        register(entry);
+    }
+  }
+
+
+  @Override
+  public void run()
+  {
+    logger.info("DeploymentWatcher started");
+
+    try
+    {
+      while(true)
+      {
+        WatchKey key = watcher.take();
+        Path folder = keys.get(key);
+
+        for(WatchEvent<?> event : key.pollEvents())
+        {
+          changed = System.currentTimeMillis();
+
+          if (event.kind() == OVERFLOW || folder == null)
+            continue;
+
+          File entry = folder.resolve((Path) event.context()).toFile();
+
+          if (event.kind() == ENTRY_CREATE && entry.isDirectory())
+          {
+            try {register(entry);}
+            catch (Exception e) {logger.log(Level.WARNING,e.getMessage(),e);}
+          }
+        }
+
+        if (!key.reset())
+          keys.remove(key);
+      }
+    }
+    catch (Exception e)
+    {
+      logger.log(Level.SEVERE,e.getMessage(),e);
+    }
+  }
+}
@@ -21,22 +21,51 @@
 
 package database.rest.pools;
 
+import java.util.logging.Level;
+import java.lang.reflect.Method;
+import java.util.logging.Logger;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 
 
+/**
+ *
+ * Shared worker pool. Either a fixed pool of platform threads, or,
+ * when configured and supported by the jvm, one virtual thread per task.
+ * In virtual mode the database pool limits the concurrency.
+ *
+ * Admission is bounded. Tasks are refused when too many are waiting,
+ * and rejectable tasks that waited longer than the budget are rejected
+ * instead of run.
+ *
+ */
 public class ThreadPool
 {
   private final int threads;
+  private static boolean virtual = false;
   private static ExecutorService workers = null;
+  private final static Method isvirtual = isvirtual();
+  private final static Logger logger = Logger.getLogger("internal");
 
   private static int queue = 0;
+  private static int waiting = 0;
+  private static long rejected = 0;
+
+  private static int limit = 0;
+  private static long budget = 0;
+
   private static final Object LOCK = new Object();
 
 
   public ThreadPool(int threads)
   {
-    init(threads);
+    this(threads,false);
+  }
+
+
+  public ThreadPool(int threads, boolean virtual)
+  {
+    init(threads,virtual);
     this.threads = threads;
   }
 
@@ -47,10 +76,10 @@ public class ThreadPool
   }
 
 
-  public void done()
+  public static void setLimits(int queue, int qtime)
   {
-    synchronized(LOCK)
-     {queue--;}
+    limit = queue;
+    budget = qtime * 1000000L;
   }
 
 
@@ -60,6 +89,12 @@ public class ThreadPool
   }
 
 
+  public boolean virtual()
+  {
+    return(virtual);
+  }
+
+
   public int size()
   {
     synchronized(LOCK)
@@ -67,13 +102,83 @@ public class ThreadPool
   }
 
 
-  private synchronized void init(int threads)
+  public static int queued()
   {
+    synchronized(LOCK)
+    {return(waiting);}
+  }
+
+
+  public static long rejected()
+  {
+    synchronized(LOCK)
+    {return(rejected);}
+  }
+
+
+  private static synchronized void init(int threads, boolean vthreads)
+  {
+    if (workers != null)
+      return;
+
+    if (vthreads)
+      workers = vthreads();
+
+    virtual = workers != null;
+
     if (workers == null)
       workers = Executors.newFixedThreadPool(threads);
   }
 
 
+  /**
+   *
+   * True when called from a virtual thread. Thread locals then live
+   * only as long as one task, and should not hold pooled resources.
+   *
+   */
+  public static boolean isVirtual()
+  {
+    if (!virtual || isvirtual == null)
+      return(false);
+
+    try
+    {
+      return((Boolean) isvirtual.invoke(Thread.currentThread()));
+    }
+    catch (Exception e)
+    {
+      return(false);
+    }
+  }
+
+
+  private static Method isvirtual()
+  {
+    try {return(Thread.class.getMethod("isVirtual"));}
+    catch (Throwable e) {return(null);}
+  }
+
+
+  // Virtual threads requires Java 21, look it up at runtime
+  private static ExecutorService vthreads()
+  {
+    try
+    {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      ExecutorService workers = (ExecutorService) method.invoke(null);
+
+      logger.info("Using virtual threads for workers");
+      return(workers);
+    }
+    catch (Throwable e)
+    {
+      logger.warning("Virtual threads not supported by jvm, using fixed thread pool");
+      return(null);
+    }
+  }
+
+
   public static void shutdown()
   {
     if (workers != null)
@@ -81,11 +186,116 @@ public class ThreadPool
   }
 
 
-  public void submit(Runnable task)
+  /**
+   *
+   * Returns false if the queue is full, the task is then not run.
+   *
+   */
+  public boolean submit(Runnable task)
   {
     synchronized(LOCK)
-      {queue++;}
+    {
+      if (limit > 0 && waiting >= limit)
+      {
+        rejected++;
+        return(false);
+      }
+
+      queue++;
+      waiting++;
+    }
+
+    try
+    {
+      workers.submit(new Task(task));
+    }
+    catch (RuntimeException e)
+    {
+      synchronized(LOCK)
+      {
+        queue--;
+        waiting--;
+      }
+
+      throw e;
+    }
+
+    return(true);
+  }
+
+
+  /**
+   *
+   * Continue work that was already admitted, such as writing a response
+   * that completed on another thread. Not subject to the queue limit.
+   *
+   */
+  public void resume(Runnable task)
+  {
+    synchronized(LOCK)
+    {
+      queue++;
+      waiting++;
+    }
+
+    try
+    {
+      workers.submit(new Task(task));
+    }
+    catch (RuntimeException e)
+    {
+      synchronized(LOCK)
+      {
+        queue--;
+        waiting--;
+      }
+
+      throw e;
+    }
+  }
+
+
+  private static class Task implements Runnable
+  {
+    private final Runnable task;
+    private final long queued = System.nanoTime();
+
+    Task(Runnable task)
+    {
+      this.task = task;
+    }
+
+    @Override
+    public void run()
+    {
+      boolean late = false;
+      long waited = System.nanoTime() - queued;
+
+      synchronized(LOCK)
+      {
+        waiting--;
+
+        if (budget > 0 && waited > budget && task instanceof Rejectable)
+        {
+          late = true;
+          rejected++;
+        }
+      }
 
-    workers.submit(task);
+      try
+      {
+        if (late) ((Rejectable) task).reject();
+        else      task.run();
+      }
+      catch (Throwable e)
+      {
+        logger.log(Level.SEVERE,e.getMessage(),e);
+      }
+      finally
+      {
+        synchronized(LOCK)
+         {queue--;}
+      }
+    }
   }
 }
\ No newline at end of file
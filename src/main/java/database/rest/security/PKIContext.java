@@ -41,6 +41,9 @@ public class PKIContext
   private TrustManager[] tmgrs;
   private X509Certificate[] chain;
 
+  private int sescache = -1;
+  private int sestimeout = -1;
+
 
   public PKIContext(Keystore identity, Keystore trust) throws Exception
   {
@@ -96,12 +99,35 @@ public class PKIContext
   }
 
 
+  /**
+   *
+   * Server side session cache, lets reconnecting clients
+   * resume their session instead of a full handshake.
+   *
+   */
+  public PKIContext setSessionCache(int size, int timeout)
+  {
+    this.sescache = size;
+    this.sestimeout = timeout;
+    if (ctx != null) sessions(ctx);
+    return(this);
+  }
+
+
+  private void sessions(SSLContext ctx)
+  {
+    if (sescache >= 0) ctx.getServerSessionContext().setSessionCacheSize(sescache);
+    if (sestimeout >= 0) ctx.getServerSessionContext().setSessionTimeout(sestimeout);
+  }
+
+
   public SSLContext getSSLContext() throws Exception
   {
     if (ctx == null)
     {
       ctx = SSLContext.getInstance("TLS");
       ctx.init(kmgrs,tmgrs,new java.security.SecureRandom());
+      sessions(ctx);
 
       for (int i = 0; i < 256; i++)
       {
@@ -23,11 +23,11 @@ package database.rest.servers;
 
 import database.rest.config.Config;
 import database.rest.servers.rest.RESTClient;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 class LoadBalancer
 {
-  private int last = -1;
   private final int htsrvs;
   private final int servers;
   private final RESTClient[] workers;
@@ -60,17 +60,11 @@ class LoadBalancer
   public RESTClient worker() throws Exception
   {
     int tries = 0;
-    int next = next();
 
     while(++tries < 32)
     {
-      for (int i = 0; i < workers.length; i++)
-      {
-        if (workers[next] != null && workers[next].up())
-          return(workers[next]);
-
-        next = ++next % workers.length;
-      }
+      RESTClient worker = choose();
+      if (worker != null) return(worker);
 
       Thread.sleep(250);
     }
@@ -79,6 +73,12 @@ class LoadBalancer
   }
 
 
+  public RESTClient[] workers()
+  {
+    return(workers.clone());
+  }
+
+
   public void register(RESTClient client)
   {
     workers[client.id()-this.htsrvs] = client;
@@ -87,13 +87,51 @@ class LoadBalancer
 
   public void deregister(RESTClient client)
   {
-    workers[client.id()-this.htsrvs] = null;
+    int id = client.id() - this.htsrvs;
+    if (workers[id] == client) workers[id] = null;
   }
 
 
-  private synchronized int next()
+  /**
+   *
+   * Power of two choices. Pick two random engines that are up,
+   * and use the one with the lowest load. Avoids sending every
+   * request to the same engine, while moving work away from
+   * engines stuck on slow calls.
+   *
+   */
+  private RESTClient choose()
   {
-    last = (++last) % workers.length;
-    return(last);
+    int up = 0;
+    RESTClient[] candidates = new RESTClient[workers.length];
+
+    for (int i = 0; i < workers.length; i++)
+    {
+      RESTClient worker = workers[i];
+      if (worker != null && worker.up()) candidates[up++] = worker;
+    }
+
+    if (up == 0) return(null);
+    if (up == 1) return(candidates[0]);
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+    int a = random.nextInt(up);
+    int b = random.nextInt(up-1);
+    if (b >= a) b++;
+
+    RESTClient first = candidates[a];
+    RESTClient second = candidates[b];
+
+    // A new or restarted engine has no latency yet. Comparing its load
+    // with one that has, would send it everything until it answers.
+    if (!first.sampled() || !second.sampled())
+    {
+      if (first.inflight() <= second.inflight()) return(first);
+      else                                       return(second);
+    }
+
+    if (first.load() <= second.load()) return(first);
+    else                               return(second);
   }
-}
\ No newline at end of file
+}
@@ -43,6 +43,8 @@ import database.rest.servers.http.HTTPServer;
 import database.rest.servers.rest.RESTClient;
 import database.rest.servers.rest.RESTServer;
 import database.rest.handlers.file.Deployment;
+import database.rest.servers.rest.RESTListener;
+import database.rest.servers.http.SSLHandshake;
 import database.rest.cluster.Cluster.ServerType;
 import database.rest.servers.http.HTTPServerType;
 import database.rest.handlers.rest.SessionManager;
@@ -219,6 +221,9 @@ public class Server extends Thread
     if (!ProcessMonitor.aquireHTTPLock())
       logger.severe("Could not obtain HTTP Lock");
 
+    if (!embedded)
+      RESTListener.open(this);
+
     return(true);
   }
 
@@ -357,6 +362,13 @@ public class Server extends Thread
   }
 
 
+  public RESTClient[] workers()
+  {
+    if (loadblcr == null) return(new RESTClient[0]);
+    return(loadblcr.workers());
+  }
+
+
   public void register(RESTClient client)
   {
     loadblcr.register(client);
@@ -449,6 +461,7 @@ public class Server extends Thread
     catch (Exception e) {logger.log(Level.SEVERE,e.getMessage(),e);}
 
     ThreadPool.shutdown();
+    SSLHandshake.shutdown();
     logger.info("Server "+id+" stopped");
   }
 
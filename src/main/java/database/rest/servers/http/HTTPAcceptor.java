@@ -22,63 +22,46 @@
 package database.rest.servers.http;
 
 import java.util.logging.Level;
-import java.util.logging.Logger;
-
-
-public class HTTPReaper extends Thread
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+
+
+/**
+ *
+ * Additional acceptor, when HTTPServer is configured with more than one.
+ * Runs the same accept loop on its own selector, and hands clients to
+ * its own group of waiters.
+ *
+ */
+class HTTPAcceptor extends Thread
 {
-  private static int timeout;
-  private final Logger logger;
-  private final HTTPWaiterPool waiters;
-  private static HTTPReaper reaper = null;
+  private final int id;
+  private final HTTPServer httpserv;
+  private final ServerSocketChannel server;
 
 
-  synchronized static void start(Logger logger, HTTPWaiterPool waiters, int timeout) throws Exception
+  HTTPAcceptor(HTTPServer httpserv, ServerSocketChannel server, int id)
   {
-    if (reaper == null)
-    {
-      HTTPReaper.timeout = timeout;
-      reaper = new HTTPReaper(logger,waiters);
-    }
-  }
-
-
-  public static int KeepAlive()
-  {
-    return(timeout/1000);
-  }
-
-
-  private HTTPReaper(Logger logger, HTTPWaiterPool waiters)
-  {
-    this.logger = logger;
-    this.waiters = waiters;
+    this.id = id;
+    this.server = server;
+    this.httpserv = httpserv;
 
     this.setDaemon(true);
-    this.setName("HTTPReaper");
-
-    this.start();
+    this.setName("HTTPAcceptor("+server.socket().getLocalPort()+":"+id+")");
   }
 
 
+  @Override
   public void run()
   {
-    HTTPWaiter[] waiters =
-      this.waiters.getWaiters();
-
     try
     {
-      while(true)
-      {
-        sleep(timeout);
-
-        for(HTTPWaiter waiter : waiters)
-          waiter.cleanout();
-      }
+      Selector selector = Selector.open();
+      httpserv.accept(server,selector,id);
     }
     catch (Exception e)
     {
-      logger.log(Level.SEVERE,e.getMessage(),e);
+      httpserv.logger().log(Level.SEVERE,e.getMessage(),e);
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,204 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package database.rest.servers.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import database.rest.pools.ThreadPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *
+ * Size-classed pool of direct buffers.
+ * Each thread (waiters, workers, handshakes) has its own arena,
+ * so borrowing and returning never contends on a lock.
+ * A buffer returned by another thread than the one that borrowed it,
+ * simply ends up in the arena of the returning thread.
+ * Virtual threads live for one task only, and get no arena.
+ * Besides the limit per arena, all arenas share a total budget,
+ * as every worker thread gets one.
+ * Only size-classed buffers are pooled and counted as in use, larger
+ * ones are allocated as needed and left to the cleaner.
+ *
+ */
+public class HTTPBufferPool
+{
+  private int pooled = 0;
+  private final ArrayDeque<ByteBuffer>[] free;
+
+  private static int MAXPOOLED = 256 * 1024;
+  private static long MAXTOTAL = 16 * 1024 * 1024;
+
+  private final static int MINSHIFT = 12;  // 4K
+  private final static int CLASSES = 5;    // 4K - 64K
+
+  private final static LongAdder hits = new LongAdder();
+  private final static LongAdder misses = new LongAdder();
+
+  private final static AtomicLong peak = new AtomicLong();
+  private final static AtomicLong inuse = new AtomicLong();
+  private final static AtomicLong cached = new AtomicLong();
+
+  private final static ThreadLocal<HTTPBufferPool> arena =
+    ThreadLocal.withInitial(() -> new HTTPBufferPool());
+
+
+  public static void setSize(int size, long total)
+  {
+    MAXPOOLED = size;
+    MAXTOTAL = total;
+  }
+
+
+  @SuppressWarnings({"unchecked","rawtypes"})
+  private HTTPBufferPool()
+  {
+    this.free = new ArrayDeque[CLASSES];
+    for (int i = 0; i < CLASSES; i++) free[i] = new ArrayDeque<ByteBuffer>();
+  }
+
+
+  public static ByteBuffer alloc(int size)
+  {
+    ByteBuffer buf = null;
+    int sclass = sclass(size);
+
+    if (sclass < CLASSES && !ThreadPool.isVirtual())
+      buf = arena.get().borrow(sclass);
+
+    if (sclass >= CLASSES)
+      return(ByteBuffer.allocateDirect(size));
+
+    if (buf == null)
+    {
+      misses.increment();
+      buf = ByteBuffer.allocateDirect(1 << (sclass + MINSHIFT));
+    }
+    else
+    {
+      hits.increment();
+    }
+
+    long used = inuse.addAndGet(buf.capacity());
+
+    long max = peak.get();
+    while(used > max && !peak.compareAndSet(max,used)) max = peak.get();
+
+    return(buf);
+  }
+
+
+  public static void release(ByteBuffer buf)
+  {
+    if (buf == null || !buf.isDirect())
+      return;
+
+    int sclass = sclass(buf.capacity());
+
+    // Not one of ours
+    if (sclass >= CLASSES || buf.capacity() != 1 << (sclass + MINSHIFT))
+      return;
+
+    inuse.addAndGet(-buf.capacity());
+
+    if (ThreadPool.isVirtual())
+      return;
+
+    buf.clear();
+    arena.get().giveback(sclass,buf);
+  }
+
+
+  private ByteBuffer borrow(int sclass)
+  {
+    ByteBuffer buf = free[sclass].pollFirst();
+    if (buf == null) return(null);
+
+    pooled -= buf.capacity();
+    cached.addAndGet(-buf.capacity());
+
+    return(buf);
+  }
+
+
+  private void giveback(int sclass, ByteBuffer buf)
+  {
+    // Bounded, drop it for the cleaner to reclaim
+    if (pooled + buf.capacity() > MAXPOOLED)
+      return;
+
+    if (cached.addAndGet(buf.capacity()) > MAXTOTAL)
+    {
+      cached.addAndGet(-buf.capacity());
+      return;
+    }
+
+    free[sclass].addFirst(buf);
+    pooled += buf.capacity();
+  }
+
+
+  private static int sclass(int size)
+  {
+    int sclass = 0;
+    while(sclass < CLASSES && size > 1 << (sclass + MINSHIFT)) sclass++;
+    return(sclass);
+  }
+
+
+  public static long hits()
+  {
+    return(hits.sum());
+  }
+
+
+  public static long misses()
+  {
+    return(misses.sum());
+  }
+
+
+  public static long inuse()
+  {
+    return(inuse.get());
+  }
+
+
+  public static long peak()
+  {
+    return(peak.get());
+  }
+
+
+  public static long pooled()
+  {
+    return(cached.get());
+  }
+
+
+  public static long budget()
+  {
+    return(MAXTOTAL);
+  }
+}
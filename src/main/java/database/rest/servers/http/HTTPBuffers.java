@@ -69,17 +69,10 @@ class HTTPBuffers
   }
 
 
-  public void alloc(boolean free) throws Exception
-  {
-    if (free) done();
-    alloc();
-  }
-
-
   public void alloc() throws Exception
   {
-    this.data = ByteBuffer.allocateDirect(size);
-    if (ssl) this.sslb = ByteBuffer.allocateDirect(psize);
+    this.data = HTTPBufferPool.alloc(size);
+    if (ssl) this.sslb = HTTPBufferPool.alloc(psize);
 
     if (data == null || (ssl & sslb == null))
       throw new Exception("Unable to allocate ByteBuffer");
@@ -88,24 +81,43 @@ class HTTPBuffers
 
   public void handshake() throws Exception
   {
-    this.data = ByteBuffer.allocateDirect(asize);
-    this.send = ByteBuffer.allocateDirect(psize);
-    this.recv = ByteBuffer.allocateDirect(psize);
+    this.data = HTTPBufferPool.alloc(asize);
+    this.send = HTTPBufferPool.alloc(psize);
+    this.recv = HTTPBufferPool.alloc(psize);
 
     if (data == null || send == null || recv == null)
       throw new Exception("Unable to allocate ByteBuffer");
   }
 
 
-  public ByteBuffer done()
+  /**
+   *
+   * Hand over the data buffer to the caller, and return
+   * all other buffers to the pool. The caller must release
+   * the data buffer when done.
+   *
+   */
+  public ByteBuffer detach()
   {
     ByteBuffer data = this.data;
 
+    this.data = null;
+    done();
+
+    return(data);
+  }
+
+
+  public void done()
+  {
+    HTTPBufferPool.release(this.data);
+    HTTPBufferPool.release(this.sslb);
+    HTTPBufferPool.release(this.send);
+    HTTPBufferPool.release(this.recv);
+
     this.data = null;
     this.sslb = null;
     this.send = null;
     this.recv = null;
-
-    return(data);
   }
-}
\ No newline at end of file
+}
@@ -21,17 +21,26 @@
 
 package database.rest.servers.http;
 
+import java.io.File;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import javax.net.ssl.SSLEngine;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.nio.channels.FileChannel;
 import database.rest.config.Config;
 import database.rest.servers.Server;
 import javax.net.ssl.SSLEngineResult;
 import database.rest.pools.ThreadPool;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import database.rest.security.PKIContext;
 import java.nio.channels.ClosedChannelException;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
@@ -56,7 +65,29 @@ public class HTTPChannel
   private final HTTPBuffers buffers;
   private final SocketChannel channel;
 
+  private long requests = 0;
+  private long responded = 0;
+  private long barrier = -1;
+  private long closeafter = -1;
+  private boolean writing = false;
+  private SelectionKey paused = null;
+
+  private final Object PIPELINE = new Object();
+
+  private final HashMap<Long,ByteBuffer[]> pending =
+    new HashMap<Long,ByteBuffer[]>();
+
+  private final ArrayDeque<HTTPRequest> held =
+    new ArrayDeque<HTTPRequest>();
+
+  // Requests not yet answered, before reading stops
+  private final static int PIPELINED = 16;
+
+  // Waiting for the turn, the connection is checked this often (ms)
+  private final static int TURNCHECK = 250;
+
   private final static Logger logger = Logger.getLogger("http");
+  private final static ThreadLocal<Selector> selectors = new ThreadLocal<Selector>();
 
 
   public HTTPChannel(Server server, SocketChannel channel, boolean ssl) throws Exception
@@ -171,6 +202,26 @@ public class HTTPChannel
   }
 
 
+  /**
+   *
+   * Widen the receive window while a large body is streamed.
+   * The socket buffer is otherwise kept at the size of one read.
+   *
+   */
+  void stream(int size)
+  {
+    try
+    {
+      if (channel.socket().getReceiveBufferSize() < size)
+        channel.socket().setReceiveBufferSize(size);
+    }
+    catch (Exception e)
+    {
+      logger.log(Level.WARNING,e.getMessage(),e);
+    }
+  }
+
+
   public String remote()
   {
     try
@@ -204,10 +255,24 @@ public class HTTPChannel
   }
 
 
+  /**
+   *
+   * Close the connection at once. Responses not yet written are dropped,
+   * and threads waiting for their turn are woken up.
+   *
+   */
   void failed()
   {
     try {channel.close();}
     catch (Exception e) {;}
+
+    synchronized(PIPELINE)
+    {
+      pending.clear();
+      PIPELINE.notifyAll();
+    }
+
+    discard();
   }
 
 
@@ -276,6 +341,263 @@ public class HTTPChannel
   }
 
 
+  /**
+   *
+   * Requests on a keep-alive connection may be pipelined.
+   * Each request is numbered when received, and responses
+   * are written in that order, no matter which worker finishes first.
+   *
+   */
+  void sequence(HTTPRequest request)
+  {
+    synchronized(PIPELINE)
+    {request.sequence(requests++);}
+  }
+
+
+  boolean busy()
+  {
+    synchronized(PIPELINE)
+    {return(responded < requests);}
+  }
+
+
+  /**
+   *
+   * Only GET and HEAD run ahead of requests not yet answered. Anything
+   * else waits until all before it are answered, and holds back those
+   * after it. Held requests are dispatched by the thread writing the
+   * response they wait for.
+   *
+   */
+  boolean admit(HTTPRequest request)
+  {
+    synchronized(PIPELINE)
+    {
+      if (held.isEmpty() && runnable(request)) return(true);
+
+      held.add(request);
+      return(false);
+    }
+  }
+
+
+  // Must be called holding PIPELINE
+  private boolean runnable(HTTPRequest request)
+  {
+    if (barrier >= responded)
+      return(false);
+
+    if (!request.safe())
+    {
+      if (request.sequence() != responded) return(false);
+      barrier = request.sequence();
+    }
+
+    return(true);
+  }
+
+
+  /**
+   *
+   * Stop reading while too many requests are not yet answered.
+   * Reading is resumed when the responses are written.
+   *
+   */
+  void throttle(SelectionKey key)
+  {
+    synchronized(PIPELINE)
+    {
+      if (!key.isValid() || requests - responded < PIPELINED)
+        return;
+
+      paused = key;
+      key.interestOps(0);
+    }
+  }
+
+
+  // Requests held when the connection is closed
+  private void discard()
+  {
+    ArrayList<HTTPRequest> dropped = null;
+
+    synchronized(PIPELINE)
+    {
+      dropped = new ArrayList<HTTPRequest>(held);
+      held.clear();
+    }
+
+    for(HTTPRequest request : dropped)
+      request.cleanup();
+  }
+
+
+  private void dispatch()
+  {
+    Selector selector = null;
+    ArrayList<HTTPRequest> ready = null;
+
+    synchronized(PIPELINE)
+    {
+      while(!held.isEmpty() && runnable(held.peek()))
+      {
+        if (ready == null) ready = new ArrayList<HTTPRequest>();
+        ready.add(held.poll());
+      }
+
+      if (paused != null && requests - responded < PIPELINED)
+      {
+        if (paused.isValid())
+        {
+          paused.interestOps(SelectionKey.OP_READ);
+          selector = paused.selector();
+        }
+
+        paused = null;
+      }
+    }
+
+    if (ready != null)
+    {
+      for(HTTPRequest request : ready)
+        request.dispatch();
+    }
+
+    if (selector != null)
+      selector.wakeup();
+  }
+
+
+  void respond(long seq, ByteBuffer[] data) throws Exception
+  {
+    synchronized(PIPELINE)
+    {
+      pending.put(seq,data);
+
+      // Another thread is writing, or not our turn
+      if (writing || seq != responded) return;
+      writing = true;
+    }
+
+    drain();
+  }
+
+
+  /**
+   *
+   * Streamed responses cannot be queued.
+   * Wait until all previous responses are written, and
+   * keep the channel until release().
+   *
+   */
+  void acquire(long seq) throws Exception
+  {
+    synchronized(PIPELINE)
+    {
+      while(writing || seq != responded)
+      {
+        if (!channel.isOpen())
+          throw new IOException("Connection closed while waiting to respond");
+
+        PIPELINE.wait(TURNCHECK);
+      }
+
+      writing = true;
+    }
+  }
+
+
+  void release() throws Exception
+  {
+    synchronized(PIPELINE)
+    {responded++;}
+
+    drain();
+  }
+
+
+  /**
+   *
+   * Answer a request that never reached a worker. The error is written
+   * in turn, after the responses still pending, and the connection is
+   * closed when it is sent. A request without a number takes the next.
+   *
+   */
+  void error(long seq, byte[] data) throws Exception
+  {
+    synchronized(PIPELINE)
+    {
+      if (seq < 0) seq = requests++;
+      closeafter = seq;
+    }
+
+    respond(seq,new ByteBuffer[] {ByteBuffer.wrap(data)});
+  }
+
+
+  private void drain() throws Exception
+  {
+    while(true)
+    {
+      ByteBuffer[] next = null;
+
+      synchronized(PIPELINE)
+      {
+        next = pending.remove(responded);
+
+        if (next == null)
+        {
+          writing = false;
+          PIPELINE.notifyAll();
+        }
+      }
+
+      if (next == null)
+      {
+        dispatch();
+        return;
+      }
+
+      try
+      {
+        write(next);
+      }
+      catch (Exception e)
+      {
+        synchronized(PIPELINE)
+        {writing = false;}
+
+        // Nothing after a partial response can be sent
+        failed();
+        throw e;
+      }
+
+      boolean close = false;
+
+      synchronized(PIPELINE)
+      {
+        responded++;
+        close = closeafter >= 0 && responded > closeafter;
+
+        if (close)
+        {
+          writing = false;
+          PIPELINE.notifyAll();
+        }
+      }
+
+      if (close)
+      {
+        try {channel.close();}
+        catch (Exception e) {;}
+        discard();
+        return;
+      }
+    }
+  }
+
+
   public ByteBuffer read()
   {
     ByteBuffer buf = null;
@@ -312,11 +634,8 @@ public class HTTPChannel
         return(null);
       }
 
-      if (buffers.data == null)
-        return(buffers.done());
-
       buffers.data.flip();
-      return(buffers.done());
+      return(buffers.detach());
     }
     catch (Exception e)
     {
@@ -378,64 +697,219 @@ public class HTTPChannel
     }
 
     buffers.data.flip();
-    return(buffers.done());
+    return(buffers.detach());
   }
 
 
   public void write(ByteBuffer buf) throws Exception
   {
-    int read = buf.remaining();
-    byte[] data = new byte[read]; buf.get(data);
-    write(data);
+    write(new ByteBuffer[] {buf});
   }
 
 
   public void write(byte[] data) throws Exception
   {
-    int wrote = 0;
-    buffers.alloc();
+    write(data,0,data.length);
+  }
+
+
+  public void write(byte[] data, int pos, int len) throws Exception
+  {
+    write(new ByteBuffer[] {ByteBuffer.wrap(data,pos,len)});
+  }
+
+
+  /**
+   *
+   * Gathering write. The buffers go to the socket, or SSLEngine,
+   * as they are, without being joined or copied first.
+   *
+   */
+  public void write(ByteBuffer[] srcs) throws Exception
+  {
     Socket socket = channel.socket();
-    int max = buffers.data.capacity();
 
-    int size = data.length;
-    int bsize = buffers.data.capacity();
+    if (ssl)
+    {
+      writessl(srcs);
+    }
+    else
+    {
+      writeplain(srcs);
+    }
 
-    while(wrote < size)
+    if (!socket.isClosed())
     {
-      int chunk = bsize;
+      try {socket.getOutputStream().flush();}
+      catch (Exception e) {;}
+    }
+  }
 
-      if (chunk > size - wrote)
-        chunk = size - wrote;
 
-      if (chunk > max)
-        chunk = max;
+  private void writeplain(ByteBuffer[] srcs) throws Exception
+  {
+    int first = 0;
+    int max = buffers.size();
 
-      buffers.data.put(data,wrote,chunk);
-      buffers.data.flip();
+    try
+    {
+      while(first < srcs.length)
+      {
+        if (!srcs[first].hasRemaining())
+        {
+          first++;
+          continue;
+        }
+
+        // Cap each call, heap buffers are copied to a
+        // temporary direct buffer of the same size by the jdk
+
+        int last = first;
+        int limit = -1;
+        int budget = max;
+
+        while(last < srcs.length && budget > 0)
+        {
+          ByteBuffer buf = srcs[last++];
 
-      if (ssl) writessl();
-      else     writeplain();
+          if (buf.remaining() > budget)
+          {
+            limit = buf.limit();
+            buf.limit(buf.position() + budget);
+          }
 
-      if (!socket.isClosed())
+          budget -= buf.remaining();
+        }
+
+        long wrote = channel.write(srcs,first,last-first);
+        if (limit >= 0) srcs[last-1].limit(limit);
+
+        if (wrote == 0)
+          await(SelectionKey.OP_WRITE);
+      }
+    }
+    catch (Exception e)
+    {
+      if (e instanceof ClosedChannelException)
       {
-        try {socket.getOutputStream().flush();}
-        catch (Exception e) {;}
+        logger.warning("Client closed connection");
+        return;
       }
 
-      wrote += chunk;
-      buffers.alloc(true);
+      throw e;
     }
+  }
 
-    buffers.done();
+
+  /**
+   *
+   * enlarge() replaces the buffer, and returns the old one to the pool.
+   * Only the buffer in use when leaving is released here.
+   *
+   */
+  private void writessl(ByteBuffer[] srcs) throws Exception
+  {
+    long remain = remaining(srcs);
+    ByteBuffer sslb = HTTPBufferPool.alloc(packsize());
+
+    try
+    {
+      while(remain > 0)
+      {
+        sslb.clear();
+        SSLEngineResult result = engine.wrap(srcs,sslb);
+
+        switch(result.getStatus())
+        {
+          case OK:
+            sslb.flip();
+
+            while(sslb.hasRemaining())
+            {
+              if (channel.write(sslb) == 0)
+                await(SelectionKey.OP_WRITE);
+            }
+
+            remain = remaining(srcs);
+            break;
+
+          case BUFFER_OVERFLOW:
+            sslb = enlarge(sslb,packsize());
+            break;
+
+          case BUFFER_UNDERFLOW:
+            throw new IllegalStateException("Unexpected behaivior");
+
+          case CLOSED:
+            return;
+        }
+      }
+    }
+    finally
+    {
+      HTTPBufferPool.release(sslb);
+    }
   }
 
 
-  private void writeplain() throws Exception
+  /**
+   *
+   * Send ranges ([start,length]) of a file. On plain connections the kernel
+   * copies directly from the page cache to the socket (sendfile).
+   * With TLS the data must pass through the SSLEngine, and is read
+   * in chunks into a pooled buffer. If given, parts are written before
+   * each range, and the last after all ranges (multipart/byteranges).
+   *
+   */
+  void transfer(File file, long[][] ranges, byte[][] parts) throws Exception
   {
+    FileChannel in = FileChannel.open(file.toPath(),StandardOpenOption.READ);
+
     try
     {
-      int remain = buffers.data.remaining();
-      while(remain > 0) remain -= channel.write(buffers.data);
+      for (int i = 0; i < ranges.length; i++)
+      {
+        if (parts != null) write(parts[i]);
+
+        if (ssl) transferssl(in,ranges[i][0],ranges[i][1]);
+        else     transferplain(in,ranges[i][0],ranges[i][1]);
+      }
+
+      if (parts != null)
+        write(parts[ranges.length]);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+
+  private void transferplain(FileChannel in, long pos, long length) throws Exception
+  {
+    long end = pos + length;
+    int sndbuf = config.getHTTP().filebuf;
+
+    try
+    {
+      // The send buffer is sized for small responses
+      if (channel.socket().getSendBufferSize() < sndbuf)
+        channel.socket().setSendBufferSize(sndbuf);
+
+      while(pos < end)
+      {
+        long sent = in.transferTo(pos,end-pos,channel);
+
+        if (sent == 0)
+        {
+          if (pos >= in.size())
+            throw new IOException("File truncated while sending");
+
+          await(SelectionKey.OP_WRITE);
+        }
+
+        pos += sent;
+      }
     }
     catch (Exception e)
     {
@@ -450,37 +924,117 @@ public class HTTPChannel
   }
 
 
-  private void writessl() throws Exception
+  private void transferssl(FileChannel in, long pos, long length) throws Exception
   {
-    int remain = buffers.data.remaining();
+    long end = pos + length;
+    ByteBuffer buf = HTTPBufferPool.alloc(appsize());
 
-    while(remain > 0)
+    try
     {
-      buffers.sslb.clear();
-      SSLEngineResult result = engine.wrap(buffers.data,buffers.sslb);
-
-      switch(result.getStatus())
+      while(pos < end)
       {
-        case OK:
-          buffers.sslb.flip();
+        buf.clear();
 
-          while(buffers.sslb.hasRemaining())
-            remain -= channel.write(buffers.sslb);
+        if (end - pos < buf.capacity())
+          buf.limit((int) (end - pos));
 
-          break;
+        int read = in.read(buf,pos);
 
-        case BUFFER_OVERFLOW:
-          buffers.sslb = enlarge(buffers.sslb,packsize());
-          break;
+        if (read < 0)
+          throw new IOException("File truncated while sending");
 
-        case BUFFER_UNDERFLOW:
-          buffers.done();
-          throw new IllegalStateException("Unexpected behaivior");
+        buf.flip();
+        pos += read;
 
-        case CLOSED:
-          break;
+        write(buf);
       }
     }
+    finally
+    {
+      HTTPBufferPool.release(buf);
+    }
+  }
+
+
+  private static long remaining(ByteBuffer[] srcs)
+  {
+    long remain = 0;
+
+    for (int i = 0; i < srcs.length; i++)
+      remain += srcs[i].remaining();
+
+    return(remain);
+  }
+
+
+  /**
+   *
+   * The socket's send buffer is full. Instead of spinning, park
+   * the writing thread until the client has consumed some of it.
+   * This throttles handlers that produce data faster than
+   * the client reads.
+   *
+   */
+  private void await(int op) throws Exception
+  {
+    await(op,config.getHTTP().timeout);
+  }
+
+
+  /**
+   *
+   * During the handshake, wait no longer than the deadline for the
+   * whole handshake. Clients that connect and go quiet would otherwise
+   * hold a handshake thread for the full http timeout.
+   *
+   */
+  private void hsawait(int op, long deadline) throws Exception
+  {
+    long left = deadline - System.currentTimeMillis();
+
+    if (left <= 0)
+      throw new HandshakeTimeout();
+
+    try
+    {
+      await(op,left);
+    }
+    catch (IOException e)
+    {
+      if (System.currentTimeMillis() < deadline) throw e;
+      throw new HandshakeTimeout();
+    }
+  }
+
+
+  private void await(int op, long timeout) throws Exception
+  {
+    if (channel.isBlocking())
+      return;
+
+    // Virtual threads end with the task, and would leak the selector
+    boolean temporary = ThreadPool.isVirtual();
+    Selector selector = temporary ? null : selectors.get();
+
+    if (selector == null)
+    {
+      selector = Selector.open();
+      if (!temporary) selectors.set(selector);
+    }
+
+    SelectionKey key = channel.register(selector,op);
+
+    try
+    {
+      if (selector.select(timeout) == 0)
+        throw new IOException("Timed out waiting for client");
+    }
+    finally
+    {
+      key.cancel();
+      if (temporary) selector.close();
+      else selector.selectNow();
+    }
   }
 
 
@@ -502,11 +1056,13 @@ public class HTTPChannel
   {
     int read;
     boolean cont = true;
+    boolean underflow = false;
 
     SSLEngineResult result = null;
     HandshakeStatus status = null;
 
     buffers.handshake();
+    long deadline = System.currentTimeMillis() + config.getSecurity().handshakeTimeout();
 
     try
     {
@@ -521,6 +1077,13 @@ public class HTTPChannel
           case NEED_UNWRAP:
             read = channel.read(buffers.recv);
 
+            // Nothing new to unwrap, wait for the client
+            if (read == 0 && (underflow || buffers.recv.position() == 0))
+            {
+              hsawait(SelectionKey.OP_READ,deadline);
+              break;
+            }
+
             if (read < 0)
             {
               if (engine.isInboundDone() && engine.isOutboundDone())
@@ -553,6 +1116,8 @@ public class HTTPChannel
               return(this.connected);
             }
 
+            underflow = false;
+
             switch(result.getStatus())
             {
               case OK:
@@ -563,6 +1128,7 @@ public class HTTPChannel
                 break;
 
               case BUFFER_UNDERFLOW:
+                underflow = true;
                 if (buffers.recv.limit() < packsize())
                   buffers.recv = enlarge(buffers.recv,packsize());
                 break;
@@ -599,7 +1165,10 @@ public class HTTPChannel
                 buffers.send.flip();
 
                 while(buffers.send.hasRemaining())
-                  channel.write(buffers.send);
+                {
+                  if (channel.write(buffers.send) == 0)
+                    hsawait(SelectionKey.OP_WRITE,deadline);
+                }
                 break;
 
               case BUFFER_OVERFLOW:
@@ -658,7 +1227,13 @@ public class HTTPChannel
     {
       try {this.channel.close();}
       catch (Exception chc) {;}
-      logger.log(Level.SEVERE,e.getMessage(),e);
+
+      if (e instanceof HandshakeTimeout) logger.fine(e.getMessage());
+      else logger.log(Level.SEVERE,e.getMessage(),e);
+
+      this.buffers.done();
+      this.connected = false;
+      return(this.connected);
     }
 
     this.buffers.done();
@@ -691,9 +1266,10 @@ public class HTTPChannel
 
     if (left < size)
     {
-      buf = ByteBuffer.allocateDirect(buf.position() + size);
+      buf = HTTPBufferPool.alloc(buf.position() + size);
       bufc.flip();
       buf.put(bufc);
+      HTTPBufferPool.release(bufc);
     }
 
     return(buf);
@@ -710,4 +1286,15 @@ public class HTTPChannel
   {
     return(engine.getSession().getApplicationBufferSize());
   }
-}
\ No newline at end of file
+
+
+  private static class HandshakeTimeout extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    HandshakeTimeout()
+    {
+      super("Timed out during TLS handshake");
+    }
+  }
+}
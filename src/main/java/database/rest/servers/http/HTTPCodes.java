@@ -37,8 +37,10 @@ public class HTTPCodes
     codes.put(204,"No Content");
     codes.put(400,"Bad Request");
     codes.put(304,"Not Modified");
+    codes.put(206,"Partial Content");
     codes.put(301,"Moved Permanently");
     codes.put(503,"Service Unavailable");
+    codes.put(416,"Range Not Satisfiable");
   }
 
 
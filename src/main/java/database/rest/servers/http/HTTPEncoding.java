@@ -0,0 +1,94 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package database.rest.servers.http;
+
+import java.util.HashMap;
+
+
+/**
+ *
+ * Content negotiation on Accept-Encoding, honoring quality values.
+ *
+ */
+public class HTTPEncoding
+{
+  /**
+   *
+   * Pick the encoding to send among those available, in order of preference.
+   * Returns null for identity, i.e. when nothing available is accepted, or
+   * the client explicitly prefers identity.
+   *
+   */
+  public static String negotiate(String header, String[] available)
+  {
+    if (header == null || available.length == 0)
+      return(null);
+
+    double wildcard = -1;
+    HashMap<String,Double> accepted = new HashMap<String,Double>();
+
+    for(String entry : header.split(","))
+    {
+      double q = 1;
+      String[] parms = entry.split(";");
+      String coding = parms[0].trim().toLowerCase();
+
+      for (int i = 1; i < parms.length; i++)
+      {
+        String parm = parms[i].trim();
+
+        if (parm.startsWith("q=") || parm.startsWith("Q="))
+        {
+          try {q = Double.parseDouble(parm.substring(2).trim());}
+          catch (NumberFormatException e) {q = 0;}
+        }
+      }
+
+      if (coding.equals("*")) wildcard = q;
+      else if (coding.length() > 0) accepted.put(coding,q);
+    }
+
+    String best = null;
+    double bestq = 0;
+
+    for(String coding : available)
+    {
+      Double q = accepted.get(coding);
+      if (q == null) q = wildcard > 0 ? wildcard : 0;
+
+      if (q > bestq)
+      {
+        best = coding;
+        bestq = q;
+      }
+    }
+
+    // Identity is acceptable unless refused, but only preferred when asked for
+    Double identity = accepted.get("identity");
+
+    if (best != null && identity != null && identity > bestq)
+      return(null);
+
+    return(best);
+  }
+}
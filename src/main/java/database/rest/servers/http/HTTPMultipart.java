@@ -0,0 +1,446 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package database.rest.servers.http;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+
+
+/**
+ *
+ * Parses a multipart/form-data body while it arrives.
+ * File parts are written to temporary files through a bounded buffer,
+ * other fields are kept in memory up to a limit per field, and in total.
+ * The number of parts is limited as well. Only a possible partial
+ * boundary, or an incomplete part header, is carried between reads.
+ *
+ */
+public class HTTPMultipart
+{
+  private int carry = 0;
+  private long memory = 0;
+  private int state = PREAMBLE;
+
+  private Part part = null;
+  private byte[] window = new byte[0];
+
+  private final File tmpdir;
+  private final byte[] delim;
+  private final int maxfield;
+  private final int maxparts;
+  private final int maxmemory;
+
+  private final ArrayList<Part> parts =
+    new ArrayList<Part>();
+
+  private final static int PREAMBLE = 0;
+  private final static int BOUNDARY = 1;
+  private final static int HEADER = 2;
+  private final static int CONTENT = 3;
+  private final static int END = 4;
+
+  private final static int MAXHEADER = 16 * 1024;
+  private final static int FILEBUF = 64 * 1024;
+
+  private final static byte[] EOH = "\r\n\r\n".getBytes();
+
+
+  HTTPMultipart(String boundary, String tmpdir, int maxfield, int maxparts, int maxmemory)
+  {
+    this.maxfield = maxfield;
+    this.maxparts = maxparts;
+    this.maxmemory = maxmemory;
+    this.tmpdir = new File(tmpdir);
+    this.delim = ("\r\n--"+boundary).getBytes();
+  }
+
+
+  static String boundary(String ctype)
+  {
+    int pos = ctype.indexOf("boundary=");
+    if (pos < 0) return(null);
+
+    String boundary = ctype.substring(pos+9);
+
+    pos = boundary.indexOf(';');
+    if (pos >= 0) boundary = boundary.substring(0,pos);
+
+    boundary = boundary.trim();
+
+    if (boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1)
+      boundary = boundary.substring(1,boundary.length()-1);
+
+    if (boundary.length() == 0) return(null);
+    return(boundary);
+  }
+
+
+  public ArrayList<Part> parts()
+  {
+    return(parts);
+  }
+
+
+  void add(ByteBuffer buf, int len) throws Exception
+  {
+    if (carry + len > window.length)
+    {
+      byte[] window = new byte[carry + len];
+      System.arraycopy(this.window,0,window,0,carry);
+      this.window = window;
+    }
+
+    buf.get(window,carry,len);
+
+    int size = carry + len;
+    int pos = process(size);
+
+    carry = size - pos;
+    System.arraycopy(window,pos,window,0,carry);
+  }
+
+
+  void done() throws Exception
+  {
+    if (state != END)
+      throw new Exception("Incomplete multipart body");
+  }
+
+
+  /**
+   *
+   * Remove temporary files that have not been moved by the handler.
+   *
+   */
+  void discard()
+  {
+    for(Part part : parts)
+      part.discard();
+  }
+
+
+  // Returns position of first byte that must be kept for next read
+  private int process(int size) throws Exception
+  {
+    int pos = 0;
+
+    while(true)
+    {
+      switch(state)
+      {
+        case PREAMBLE:
+        {
+          // First boundary is not preceded by CRLF
+          int next = indexOf(window,pos,size,delim,2);
+
+          if (next < 0)
+            return(Math.max(pos,size-delim.length+2));
+
+          pos = next + delim.length - 2;
+          state = BOUNDARY;
+          break;
+        }
+
+        case BOUNDARY:
+        {
+          if (size - pos < 2)
+            return(pos);
+
+          if (window[pos] == '-' && window[pos+1] == '-')
+          {
+            state = END;
+          }
+          else if (window[pos] == '\r' && window[pos+1] == '\n')
+          {
+            state = HEADER;
+          }
+          else
+          {
+            throw new Exception("Malformed multipart boundary");
+          }
+
+          pos += 2;
+          break;
+        }
+
+        case HEADER:
+        {
+          int eoh = indexOf(window,pos,size,EOH,0);
+
+          if (eoh < 0)
+          {
+            if (size - pos > MAXHEADER)
+              throw new Exception("Multipart header too large");
+
+            return(pos);
+          }
+
+          if (parts.size() >= maxparts)
+            throw new Exception("Multipart body exceeds "+maxparts+" parts");
+
+          part = new Part(new String(window,pos,eoh-pos));
+
+          if (part.filename != null)
+            part.open(tmpdir);
+
+          parts.add(part);
+
+          pos = eoh + EOH.length;
+          state = CONTENT;
+          break;
+        }
+
+        case CONTENT:
+        {
+          int next = indexOf(window,pos,size,delim,0);
+
+          if (next < 0)
+          {
+            // Keep what could be the start of the boundary
+            int safe = size - delim.length + 1;
+
+            if (safe > pos)
+            {
+              content(pos,safe-pos);
+              pos = safe;
+            }
+
+            return(pos);
+          }
+
+          content(pos,next-pos);
+          part.close();
+
+          pos = next + delim.length;
+          state = BOUNDARY;
+          break;
+        }
+
+        default:
+          // Ignore epilogue
+          return(size);
+      }
+    }
+  }
+
+
+  private void content(int pos, int len) throws Exception
+  {
+    if (part.file == null && len > 0)
+    {
+      memory += len;
+
+      if (memory > maxmemory)
+        throw new Exception("Multipart fields exceed "+maxmemory+" bytes in memory");
+    }
+
+    part.write(window,pos,len,maxfield);
+  }
+
+
+  private static int indexOf(byte[] data, int from, int to, byte[] pattern, int poff)
+  {
+    int plen = pattern.length - poff;
+    byte first = pattern[poff];
+
+    for (int i = from; i <= to - plen; i++)
+    {
+      if (data[i] != first)
+        continue;
+
+      boolean found = true;
+
+      for (int j = 1; j < plen; j++)
+      {
+        if (data[i+j] != pattern[poff+j])
+        {
+          found = false;
+          break;
+        }
+      }
+
+      if (found) return(i);
+    }
+
+    return(-1);
+  }
+
+
+  public static class Part
+  {
+    private long size = 0;
+    private File file = null;
+    private OutputStream out = null;
+    private ByteArrayOutputStream mem = null;
+
+    private final String name;
+    private final String ctype;
+    private final String header;
+    private final String filename;
+
+
+    Part(String header)
+    {
+      this.header = header;
+      this.name = param(header,"name");
+      this.filename = param(header,"filename");
+      this.ctype = value(header,"Content-Type");
+
+      this.mem = new ByteArrayOutputStream();
+      this.out = mem;
+    }
+
+
+    public String name()
+    {
+      return(name);
+    }
+
+
+    public String filename()
+    {
+      return(filename);
+    }
+
+
+    public String contentType()
+    {
+      return(ctype);
+    }
+
+
+    public String header()
+    {
+      return(header);
+    }
+
+
+    public long size()
+    {
+      return(size);
+    }
+
+
+    /**
+     *
+     * The temporary file of a file part. Handlers
+     * are expected to move it, otherwise it is removed.
+     *
+     */
+    public File file()
+    {
+      return(file);
+    }
+
+
+    public byte[] content()
+    {
+      if (mem == null) return(null);
+      return(mem.toByteArray());
+    }
+
+
+    private void open(File tmpdir) throws Exception
+    {
+      tmpdir.mkdirs();
+
+      this.mem = null;
+      this.file = File.createTempFile("upload",".tmp",tmpdir);
+      this.out = new BufferedOutputStream(new FileOutputStream(file),FILEBUF);
+    }
+
+
+    private void write(byte[] data, int pos, int len, int maxfield) throws Exception
+    {
+      if (len <= 0) return;
+
+      size += len;
+
+      if (mem != null && size > maxfield)
+        throw new Exception("Multipart field "+name+" exceeds "+maxfield+" bytes");
+
+      out.write(data,pos,len);
+    }
+
+
+    private void close() throws Exception
+    {
+      out.close();
+    }
+
+
+    private void discard()
+    {
+      try {out.close();}
+      catch (Exception e) {;}
+
+      if (file != null && file.exists())
+        file.delete();
+    }
+
+
+    private static String param(String header, String param)
+    {
+      String lower = header.toLowerCase();
+      String match = param+"=\"";
+
+      int pos = -1;
+
+      while(true)
+      {
+        pos = lower.indexOf(match,pos+1);
+        if (pos < 0) return(null);
+
+        // Don't match name= in filename=
+        if (pos == 0 || lower.charAt(pos-1) == ' ' || lower.charAt(pos-1) == ';')
+          break;
+      }
+
+      pos += match.length();
+      int end = header.indexOf('"',pos);
+
+      if (end < 0) return(null);
+      return(header.substring(pos,end));
+    }
+
+
+    private static String value(String header, String name)
+    {
+      String[] lines = header.split("\r\n");
+
+      for(String line : lines)
+      {
+        int pos = line.indexOf(':');
+
+        if (pos > 0 && line.substring(0,pos).trim().equalsIgnoreCase(name))
+          return(line.substring(pos+1).trim());
+      }
+
+      return(null);
+    }
+  }
+}
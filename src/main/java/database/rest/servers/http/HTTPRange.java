@@ -0,0 +1,159 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package database.rest.servers.http;
+
+import java.util.ArrayList;
+
+
+/**
+ *
+ * Byte ranges (Range/If-Range) of a GET request.
+ * Ranges are returned as [start,length], sorted, with overlapping
+ * and adjacent ranges merged. Requests for too many ranges are
+ * served as a whole.
+ *
+ */
+public class HTTPRange
+{
+  private final static int MAXRANGES = 16;
+
+
+  /**
+   *
+   * The ranges to send. Null if the full content should be sent,
+   * empty if none of the ranges can be satisfied (416).
+   *
+   */
+  public static long[][] get(HTTPRequest request, String etag, String modified, long size)
+  {
+    if (!request.method().equals("GET"))
+      return(null);
+
+    String range = request.getHeader("Range");
+    if (range == null) return(null);
+
+    String ifrange = request.getHeader("If-Range");
+
+    if (ifrange != null)
+    {
+      // Strong comparison, a weak tag never matches
+      if (ifrange.startsWith("W/")) return(null);
+      if (!ifrange.equals(etag) && !ifrange.equals(modified)) return(null);
+    }
+
+    return(parse(range,size));
+  }
+
+
+  public static long[][] parse(String header, long size)
+  {
+    header = header.trim();
+
+    if (!header.toLowerCase().startsWith("bytes="))
+      return(null);
+
+    String[] specs = header.substring(6).split(",");
+
+    if (specs.length > MAXRANGES)
+      return(null);
+
+    ArrayList<long[]> ranges = new ArrayList<long[]>();
+
+    try
+    {
+      for(String spec : specs)
+      {
+        spec = spec.trim();
+        int dash = spec.indexOf('-');
+
+        if (dash < 0)
+          return(null);
+
+        String first = spec.substring(0,dash).trim();
+        String last = spec.substring(dash+1).trim();
+
+        long start;
+        long end;
+
+        if (first.length() == 0)
+        {
+          // Suffix, the last n bytes
+          long n = Long.parseLong(last);
+
+          if (n <= 0 || size == 0) continue;
+
+          start = size > n ? size - n : 0;
+          end = size - 1;
+        }
+        else
+        {
+          start = Long.parseLong(first);
+          end = last.length() == 0 ? Long.MAX_VALUE : Long.parseLong(last);
+
+          if (start < 0 || end < start) return(null);
+          if (start >= size) continue;
+
+          if (end >= size) end = size - 1;
+        }
+
+        ranges.add(new long[] {start,end});
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      return(null);
+    }
+
+    return(merge(ranges));
+  }
+
+
+  private static long[][] merge(ArrayList<long[]> ranges)
+  {
+    ranges.sort((a,b) -> Long.compare(a[0],b[0]));
+    ArrayList<long[]> merged = new ArrayList<long[]>();
+
+    for(long[] range : ranges)
+    {
+      long[] prev = merged.size() > 0 ? merged.get(merged.size()-1) : null;
+
+      if (prev != null && range[0] <= prev[1] + 1)
+      {
+        if (range[1] > prev[1]) prev[1] = range[1];
+        continue;
+      }
+
+      merged.add(range);
+    }
+
+    long[][] result = new long[merged.size()][];
+
+    for (int i = 0; i < result.length; i++)
+    {
+      long[] range = merged.get(i);
+      result[i] = new long[] {range[0],range[1]-range[0]+1};
+    }
+
+    return(result);
+  }
+}
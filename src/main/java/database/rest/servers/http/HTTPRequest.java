@@ -24,23 +24,52 @@ package database.rest.servers.http;
 import java.util.HashMap;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import database.rest.config.HTTP;
 import database.rest.servers.Server;
+import database.rest.handlers.Handler;
 import java.nio.channels.SelectionKey;
 
 
+/**
+ *
+ * The request is parsed incrementally while it arrives.
+ * Received bytes are appended to a single buffer, that is sized to
+ * the full request as soon as Content-Length is known. The header is
+ * scanned only once, and the offsets of the request line and each header
+ * line are recorded. Headers, cookies and query parameters are decoded
+ * from these slices on demand.
+ *
+ * Large multipart bodies for handlers that support it are not kept,
+ * but parsed as they arrive by HTTPMultipart.
+ *
+ */
 public class HTTPRequest
 {
+  private long seq = -1;
   private long time = 0;
+  private int size = 0;
+  private int state = METHOD;
+
   private int header = -1;
   private int clength = -1;
+  private int received = 0;
+  private int scanned = 0;
+  private int linestart = 0;
+
+  private int lines = 0;
+  private int[] hstart = new int[16];
+  private int[] hcolon = new int[16];
+  private int[] hend = new int[16];
 
   private String host = null;
   private String path = null;
+  private String query = null;
   private String remote = null;
   private String method = null;
   private String version = null;
   private boolean parsed = false;
   private boolean redirect = false;
+  private int rejected = 400;
 
   private final Server server;
   private final SelectionKey key;
@@ -48,18 +77,22 @@ public class HTTPRequest
   private final HTTPChannel channel;
 
   private byte[] body = null;
+  private HTTPStream stream = null;
+  private byte[] remainder = null;
   private byte[] request = new byte[0];
+  private HTTPMultipart multipart = null;
 
-  private HashMap<String,String> headers =
-    new HashMap<String,String>();
+  private HashMap<String,String> cookies = null;
+  private ArrayList<Pair<String,String>> qparms = null;
 
-  private HashMap<String,String> cookies =
-    new HashMap<String,String>();
+  private final static int METHOD = 0;
+  private final static int HEADER = 1;
+  private final static int BODY = 2;
+  private final static int DONE = 3;
 
-  private final ArrayList<Pair<String,String>> query =
-    new ArrayList<Pair<String,String>>();
+  private final static int INITIAL = 1024;
+  private final static int INCOMPLETE = 30000;
 
-  private final static String EOL = "\r\n";
   private long touched = System.currentTimeMillis();
 
 
@@ -73,7 +106,11 @@ public class HTTPRequest
     this.server = server;
     this.redirect = false;
 
-    this.add(data);
+    // The page is owned by the caller, no need to copy
+    this.request = data;
+    this.size = data.length;
+
+    this.scan();
   }
 
 
@@ -138,7 +175,7 @@ public class HTTPRequest
   public byte[] body()
   {
     if (body != null) return(body);
-    int blen = request.length - this.header - 4;
+    int blen = size - this.header - 4;
 
     if (blen > 0)
     {
@@ -156,7 +193,10 @@ public class HTTPRequest
 
   public String getQuery(String qstr)
   {
-    for(Pair<String,String> entry : query)
+    if (qparms == null)
+      qparms = parseQuery(query);
+
+    for(Pair<String,String> entry : qparms)
     {
       if (entry.getKey().equals(qstr))
         return(entry.getValue());
@@ -166,11 +206,37 @@ public class HTTPRequest
 
   public String getHeader(String header)
   {
-    return(headers.get(header));
+    int len = header.length();
+
+    // Last occurrence wins
+    for (int i = lines - 1; i >= 0; i--)
+    {
+      int b = hstart[i];
+      int e = hcolon[i];
+
+      while(e > b && request[e-1] == ' ') e--;
+      if (e - b != len) continue;
+
+      if (matches(b,header))
+      {
+        b = hcolon[i] + 1;
+        e = hend[i];
+
+        while(b < e && request[b] == ' ') b++;
+        while(e > b && request[e-1] == ' ') e--;
+
+        return(new String(request,b,e-b));
+      }
+    }
+
+    return(null);
   }
 
   public String getCookie(String cookie)
   {
+    if (cookies == null)
+      cookies = parseCookies(getHeader("Cookie"));
+
     return(cookies.get(cookie));
   }
 
@@ -181,7 +247,139 @@ public class HTTPRequest
 
   public void respond(byte[] data) throws Exception
   {
+    respond(new ByteBuffer[] {ByteBuffer.wrap(data)});
+  }
+
+  /**
+   *
+   * Header and body are written as is, without being joined first
+   *
+   */
+  public void respond(HTTPResponse response) throws Exception
+  {
+    if (response.file() == null)
+    {
+      respond(response.buffers());
+      return;
+    }
+
+    // The file is sent after the header, keep the channel in between
+    acquire();
+
+    try
+    {
+      channel.write(response.buffers());
+      channel.transfer(response.file(),response.ranges(),response.parts());
+    }
+    catch (Exception e)
+    {
+      // Part of the response may be sent
+      channel.failed();
+      throw e;
+    }
+    finally
+    {
+      release();
+    }
+  }
+
+  /**
+   *
+   * Answer with an error and close the connection when it is sent,
+   * after the responses to earlier requests.
+   *
+   */
+  void fail(byte[] data) throws Exception
+  {
+    if (!channel.channel().isOpen())
+      return;
+
+    if (seq >= 0)
+    {
+      channel.error(seq,data);
+      return;
+    }
+
     channel.write(data);
+    channel.failed();
+  }
+
+  public void respond(ByteBuffer[] data) throws Exception
+  {
+    if (seq < 0) channel.write(data);
+    else channel.respond(seq,data);
+  }
+
+  /**
+   *
+   * Write the response body as it is produced (chunked)
+   *
+   */
+  public HTTPStream stream(HTTPResponse response) throws Exception
+  {
+    return(stream(response,-1));
+  }
+
+  /**
+   *
+   * Write a response body of known length as it is produced
+   *
+   */
+  public HTTPStream stream(HTTPResponse response, long length) throws Exception
+  {
+    if (channel == null)
+      throw new Exception("Streaming is only supported on client connections");
+
+    int bufsize = channel.config().getHTTP().bufsize;
+    this.stream = new HTTPStream(this,response,length,bufsize);
+    return(stream);
+  }
+
+  // Safe to process ahead of requests not yet answered
+  boolean safe()
+  {
+    return(method.equals("GET") || method.equals("HEAD"));
+  }
+
+  void dispatch()
+  {
+    waiter.dispatch(this);
+  }
+
+  void acquire() throws Exception
+  {
+    if (seq >= 0) channel.acquire(seq);
+  }
+
+  void release() throws Exception
+  {
+    if (seq >= 0) channel.release();
+  }
+
+  boolean streamed()
+  {
+    return(stream != null);
+  }
+
+  /**
+   *
+   * Give up a stream the handler could not complete
+   *
+   */
+  void abort()
+  {
+    if (stream != null) stream.abort();
+  }
+
+  /**
+   *
+   * Make sure a stream left open by the handler is terminated
+   *
+   */
+  void close() throws Exception
+  {
+    if (stream != null && !stream.closed())
+      stream.close();
   }
 
   public SelectionKey key()
@@ -196,12 +394,59 @@ public class HTTPRequest
 
   boolean done()
   {
-    return(clength >= 0);
+    return(state == DONE);
+  }
+
+  void sequence(long seq)
+  {
+    this.seq = seq;
+  }
+
+  long sequence()
+  {
+    return(seq);
+  }
+
+  /**
+   *
+   * Bytes received after this request (pipelined requests)
+   *
+   */
+  byte[] remainder()
+  {
+    return(remainder);
+  }
+
+  /**
+   *
+   * The parts of a multipart body that was streamed, otherwise null
+   *
+   */
+  public HTTPMultipart multipart()
+  {
+    return(multipart);
   }
 
-  boolean cancelled()
+  // Status to answer with, when the request cannot be parsed
+  int rejected()
   {
-    return(System.currentTimeMillis() - touched > 30000);
+    return(rejected);
+  }
+
+  /**
+   *
+   * Remove temporary files not claimed by the handler
+   *
+   */
+  void cleanup()
+  {
+    if (multipart != null)
+      multipart.discard();
+  }
+
+  long deadline()
+  {
+    return(touched + INCOMPLETE);
   }
 
 
@@ -216,195 +461,467 @@ public class HTTPRequest
     if (parsed) return;
 
     parsed = true;
-    String header = new String(request,0,this.header);
+    remote = getClientIpAddr(this);
+    if (remote == null) remote = host;
+  }
 
-    String[] lines = header.split(EOL);
-    for (int i = 1; i < lines.length; i++)
-    {
-      int pos = lines[i].indexOf(':');
-      if (pos <= 0) continue;
 
-      String key = lines[i].substring(0,pos).trim();
-      String val = lines[i].substring(pos+1).trim();
+  public boolean add(ByteBuffer buf) throws Exception
+  {
+    int read = buf.remaining();
+
+    time = System.nanoTime();
+    if (multipart != null) return(feed(buf));
 
-      this.headers.put(key,val);
-    }
+    ensure(size + read);
 
-    int pos = this.path.indexOf('?');
+    buf.get(request,size,read);
+    size += read;
 
-    if (pos >= 0)
+    return(scan());
+  }
+
+
+  public boolean add(byte[] data) throws Exception
+  {
+    return(add(data,0,data.length));
+  }
+
+
+  public boolean add(byte[] data, int pos, int len) throws Exception
+  {
+    time = System.nanoTime();
+    if (multipart != null) return(feed(ByteBuffer.wrap(data,pos,len)));
+
+    ensure(size + len);
+
+    System.arraycopy(data,pos,request,size,len);
+    size += len;
+
+    return(scan());
+  }
+
+
+  /**
+   *
+   * Advance the parser over bytes not yet seen.
+   * Returns true when the full request has been received.
+   *
+   */
+  private boolean scan() throws Exception
+  {
+    while(state == METHOD || state == HEADER)
     {
-      String query = this.path.substring(pos+1);
-      this.path = this.path.substring(0,pos);
-      String[] parts = query.split("&");
+      int eol = eol();
+      if (eol < 0) return(false);
 
-      for(String part : parts)
+      if (state == METHOD)
       {
-        pos = part.indexOf('=');
-        if (pos < 0) this.query.add(new Pair<String,String>(part,null));
-        else this.query.add(new Pair<String,String>(part.substring(0,pos),part.substring(pos+1)));
+        requestline(linestart,eol);
+        state = HEADER;
       }
-    }
+      else if (eol == linestart)
+      {
+        header = linestart - 2;
+        clength = contentlength();
 
-    String hcookie = headers.get("Cookie");
+        state = BODY;
+        linestart = eol + 2;
 
-    if (hcookie != null)
+        if (streamable())
+          return(startmultipart());
+
+        if (channel != null && clength > server.config().getHTTP().maxbody)
+        {
+          rejected = 413;
+          throw new Exception("Body of "+clength+" bytes exceeds limit "+server.config().getHTTP().maxbody);
+        }
+
+        continue;
+      }
+      else
+      {
+        headerline(linestart,eol);
+      }
+
+      linestart = eol + 2;
+    }
+
+    if (state == BODY)
     {
-      String[] cookies = hcookie.split(";");
-      for (int i = 0; i < cookies.length; i++)
+      int total = header + 4 + clength;
+
+      if (size > total)
       {
-        String[] nvp = cookies[i].split("=");
+        // Pipelined, keep whatever belongs to the next request(s)
+        remainder = new byte[size-total];
+        System.arraycopy(request,total,remainder,0,remainder.length);
+        size = total;
+      }
 
-        String name = nvp[0].trim();
-        String value = nvp.length > 1 ? nvp[1].trim() : "";
-        this.cookies.put(name,value);
+      if (size == total)
+      {
+        fit(total);
+        state = DONE;
       }
     }
 
-    remote = getClientIpAddr(this);
-    if (remote == null) remote = host;
+    return(state == DONE);
   }
 
 
-  public boolean add(ByteBuffer buf) throws Exception
+  /**
+   *
+   * Only large multipart uploads to handlers that accept them as parts
+   *
+   */
+  private boolean streamable() throws Exception
   {
-    int read = buf.remaining();
-    byte[] data = new byte[read]; buf.get(data);
-    return(add(data,0,data.length));
+    if (channel == null || channel.admin())
+      return(false);
+
+    String ctype = getHeader("Content-Type");
+
+    if (ctype == null || !ctype.toLowerCase().startsWith("multipart/form-data"))
+      return(false);
+
+    HTTP http = server.config().getHTTP();
+
+    if (clength > http.maxupload)
+    {
+      rejected = 413;
+      throw new Exception("Upload of "+clength+" bytes exceeds limit "+http.maxupload);
+    }
+
+    if (clength <= http.memupload)
+      return(false);
+
+    Handler handler = http.handlers.getHandler(path,method);
+    if (handler == null || !handler.streaming()) return(false);
+
+    return(HTTPMultipart.boundary(ctype) != null);
   }
 
 
-  public boolean add(byte[] data) throws Exception
+  /**
+   *
+   * Keep the header only, and pass the body to the multipart parser
+   *
+   */
+  private boolean startmultipart() throws Exception
   {
-    return(add(data,0,data.length));
+    HTTP http = server.config().getHTTP();
+    String boundary = HTTPMultipart.boundary(getHeader("Content-Type"));
+
+    byte[] data = this.request;
+    int start = header + 4;
+    int surplus = size - start;
+
+    size = start;
+    fit(start);
+
+    channel.stream(http.upbuffer);
+    this.multipart = new HTTPMultipart(boundary,http.tmppath,http.maxfield,http.maxparts,http.memupload);
+    return(feed(ByteBuffer.wrap(data,start,surplus)));
   }
 
 
-  public boolean add(byte[] data, int pos, int len) throws Exception
+  private boolean feed(ByteBuffer buf) throws Exception
   {
-    time = System.nanoTime();
-    int last = request.length;
-    byte[] request = new byte[this.request.length+len];
+    int len = buf.remaining();
+    if (len > clength - received) len = clength - received;
 
-    System.arraycopy(data,pos,request,last,len);
-    System.arraycopy(this.request,0,request,0,this.request.length);
+    // Large uploads only time out when they stall
+    touched = System.currentTimeMillis();
 
-    this.request = request;
+    multipart.add(buf,len);
+    received += len;
 
-    if (request.length < 8)
-      return(false);
+    if (buf.hasRemaining())
+    {
+      // Pipelined, keep whatever belongs to the next request(s)
+      remainder = new byte[buf.remaining()];
+      buf.get(remainder);
+    }
 
-    if (method == null)
-      method = getMethod();
+    if (received == clength)
+    {
+      multipart.done();
+      state = DONE;
+    }
+
+    return(state == DONE);
+  }
 
-    if (method == null)
-      return(false);
 
-    if (header < 0)
+  /**
+   *
+   * Find next CRLF, only looking at bytes not scanned before.
+   *
+   */
+  private int eol()
+  {
+    int start = scanned;
+    if (start < linestart) start = linestart;
+
+    for (int i = start; i < size - 1; i++)
     {
-      if (method.equals("GET")) this.bckward(last);
-      else                      this.forward(last);
+      if (request[i] == '\r' && request[i+1] == '\n')
+      {
+        scanned = i + 2;
+        return(i);
+      }
     }
 
-    if (header < 0)
-      return(false);
+    scanned = size - 1;
+    return(-1);
+  }
 
-    if (clength < 0)
-    {
-      path = getPath();
-      version = getVersion();
 
-      if (method.equals("GET"))
+  private void requestline(int b, int e) throws Exception
+  {
+    int sp1 = -1;
+    int sp2 = -1;
+
+    for (int i = b; i < e; i++)
+    {
+      if (request[i] == ' ')
       {
-        clength = 0;
+        if (sp1 < 0) sp1 = i;
+        else {sp2 = i; break;}
       }
-      else
-      {
-        parse();
-        String cl = headers.get("Content-Length");
+    }
+
+    if (sp1 < 0)
+      throw new Exception("Malformed request line");
+
+    this.method = new String(request,b,sp1-b);
+
+    if (sp2 < 0) sp2 = e;
+    String path = new String(request,sp1+1,sp2-sp1-1);
 
-        if (cl == null) clength = 0;
-        else clength = Integer.parseInt(cl);
+    int pos = path.indexOf('?');
+
+    if (pos >= 0)
+    {
+      this.query = path.substring(pos+1);
+      path = path.substring(0,pos);
+    }
+
+    if (path.length() > 1 && path.endsWith("/"))
+      path = path.substring(0,path.length()-1);
+
+    if (path.length() == 0)
+      path = "/";
+
+    this.path = path;
+
+    // Skip HTTP/ (5 bytes)
+    if (e - sp2 > 6) this.version = new String(request,sp2+6,e-sp2-6);
+  }
+
+
+  private void headerline(int b, int e)
+  {
+    int colon = -1;
+
+    for (int i = b; i < e; i++)
+    {
+      if (request[i] == ':')
+      {
+        colon = i;
+        break;
       }
     }
 
-    if (request.length > header + clength + 4)
-      throw new Exception("Received multiple requests without client waiting for response");
+    if (colon <= b) return;
+
+    if (lines == hstart.length)
+    {
+      int grow = 2 * lines;
+
+      int[] hstart = new int[grow];
+      int[] hcolon = new int[grow];
+      int[] hend = new int[grow];
+
+      System.arraycopy(this.hstart,0,hstart,0,lines);
+      System.arraycopy(this.hcolon,0,hcolon,0,lines);
+      System.arraycopy(this.hend,0,hend,0,lines);
+
+      this.hstart = hstart;
+      this.hcolon = hcolon;
+      this.hend = hend;
+    }
 
-    return(request.length == header + clength + 4);
+    while(b < colon && request[b] == ' ') b++;
+
+    hstart[lines] = b;
+    hcolon[lines] = colon;
+    hend[lines] = e;
+
+    lines++;
   }
 
 
-  private String getPath()
+  /**
+   *
+   * Leftover bytes are parsed as the next request, so the body must be
+   * framed by exactly one Content-Length, whatever the method.
+   * Chunked requests are not supported.
+   *
+   */
+  private int contentlength() throws Exception
   {
-    if (method == null)
-      return(null);
+    int lengths = count("Content-Length");
+
+    if (count("Transfer-Encoding") > 0)
+    {
+      if (lengths == 0) rejected = 501;
+      throw new Exception("Transfer-Encoding not supported on requests");
+    }
+
+    if (lengths > 1)
+      throw new Exception("Multiple Content-Length headers");
+
+    String cl = getHeader("Content-Length");
+    if (cl == null) return(0);
 
-    int b = method.length()+1;
+    cl = cl.trim();
+    long length = 0;
 
-    for (int i = b; i < request.length; i++)
+    if (cl.length() == 0)
+      throw new Exception("Invalid Content-Length");
+
+    for (int i = 0; i < cl.length(); i++)
     {
-      if (request[i] == ' ')
-      {
-        String path = new String(request,b,i-b);
+      char c = cl.charAt(i);
 
-        if (path.length() > 1 && path.endsWith("/"))
-          path = path.substring(0,path.length()-1);
+      if (c < '0' || c > '9')
+        throw new Exception("Invalid Content-Length "+cl);
 
-        if (path.length() == 0)
-          path = "/";
+      length = 10 * length + (c - '0');
 
-        return(path);
+      if (length > Integer.MAX_VALUE)
+      {
+        rejected = 413;
+        throw new Exception("Content-Length "+cl+" too large");
       }
     }
 
-    return(null);
+    return((int) length);
   }
 
 
-  private String getMethod()
+  private int count(String header)
   {
-    for (int i = 0; i < request.length; i++)
+    int count = 0;
+    int len = header.length();
+
+    for (int i = 0; i < lines; i++)
     {
-      if (request[i] == ' ')
-        return(new String(request,0,i));
+      int b = hstart[i];
+      int e = hcolon[i];
+
+      while(e > b && request[e-1] == ' ') e--;
+      if (e - b == len && matches(b,header)) count++;
     }
 
-    return(null);
+    return(count);
+  }
+
+
+  private boolean matches(int pos, String name)
+  {
+    for (int i = 0; i < name.length(); i++)
+    {
+      char c = (char) request[pos+i];
+      if (Character.toLowerCase(c) != Character.toLowerCase(name.charAt(i)))
+        return(false);
+    }
+
+    return(true);
   }
 
 
-  private String getVersion()
+  // Grow (amortized) as data arrives, never beyond the declared size
+  private void ensure(int need)
   {
-    if (path == null)
-      return(null);
+    if (need <= request.length)
+      return;
 
-    int e = 0;
-    int b = 2 + method.length() + path.length();
+    long cap = 2L * request.length;
+    if (cap < INITIAL) cap = INITIAL;
 
-    for (int h = b; h < request.length-1; h++)
+    if (state == BODY || state == DONE)
     {
-      if (request[h] == '\r' && request[h+1] == '\n')
-      {
-        e = h-1;
+      long total = header + 4L + clength;
+      if (cap > total) cap = total;
+    }
 
-        for (int i = h-1; i > 0; i--)
-        {
-          if (request[i] == ' ')
-          {
-            b = i+1;
-            break;
-          }
-        }
+    if (cap < need) cap = need;
 
-        // Skip HTTP/ (5 bytes)
+    byte[] request = new byte[(int) cap];
+    System.arraycopy(this.request,0,request,0,size);
+    this.request = request;
+  }
 
-        if (e-b-4 < b + 5) return(null);
-        return(new String(request,b+5,e-b-4));
-      }
+
+  // Size the buffer to the full request
+  private void fit(int total)
+  {
+    if (request.length == total)
+      return;
+
+    if (total < size)
+      total = size;
+
+    byte[] request = new byte[total];
+    System.arraycopy(this.request,0,request,0,size);
+    this.request = request;
+  }
+
+
+  private static ArrayList<Pair<String,String>> parseQuery(String query)
+  {
+    ArrayList<Pair<String,String>> qparms =
+      new ArrayList<Pair<String,String>>();
+
+    if (query == null)
+      return(qparms);
+
+    String[] parts = query.split("&");
+
+    for(String part : parts)
+    {
+      int pos = part.indexOf('=');
+      if (pos < 0) qparms.add(new Pair<String,String>(part,null));
+      else qparms.add(new Pair<String,String>(part.substring(0,pos),part.substring(pos+1)));
     }
 
-    return(null);
+    return(qparms);
+  }
+
+
+  private static HashMap<String,String> parseCookies(String hcookie)
+  {
+    HashMap<String,String> cookies =
+      new HashMap<String,String>();
+
+    if (hcookie == null)
+      return(cookies);
+
+    String[] entries = hcookie.split(";");
+
+    for (int i = 0; i < entries.length; i++)
+    {
+      String[] nvp = entries[i].split("=");
+
+      String name = nvp[0].trim();
+      String value = nvp.length > 1 ? nvp[1].trim() : "";
+      cookies.put(name,value);
+    }
+
+    return(cookies);
   }
 
 
@@ -449,49 +966,10 @@ public class HTTPRequest
   }
 
 
-  /**
-   *
-   * Returns the length of the header (pos+1)
-   *
-   */
-  void forward(int last)
-  {
-    int start = 0;
-    if (last > 3) start = last - 3;
-
-    for (int h = start; h < request.length-3; h++)
-    {
-      if (request[h] == '\r' && request[h+1] == '\n' && request[h+2] == '\r' && request[h+3] == '\n')
-      {
-        header = h;
-        return;
-      }
-    }
-  }
-
-
-  /**
-   *
-   * Returns the length of the header (pos+1)
-   *
-   */
-  void bckward(int last)
-  {
-    for (int h = request.length-1; h >= 3 && h >= last-3; h--)
-    {
-      if (request[h-3] == '\r' && request[h-2] == '\n' && request[h-1] == '\r' && request[h] == '\n')
-      {
-        header = h - 3;
-        return;
-      }
-    }
-  }
-
-
   @Override
   public String toString()
   {
-    return(new String(request));
+    return(new String(request,0,size));
   }
 
 
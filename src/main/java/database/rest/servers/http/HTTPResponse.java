@@ -21,19 +21,26 @@
 
 package database.rest.servers.http;
 
+import java.io.File;
 import java.util.Date;
 import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 
 
 public class HTTPResponse
 {
+  private File file;
+  private byte[][] parts;
+  private long[][] ranges;
   private byte[] body;
   private byte[] page;
   private String header;
   private String response;
   private String mimetype;
+  private boolean streamed;
   private boolean finished;
+  private long length = -1;
   private static int timeout;
 
   // Not threadsafe => allocate per response
@@ -81,19 +88,43 @@ public class HTTPResponse
 
     finished = true;
 
-    if (body == null)
+    if (body == null && file == null && !streamed)
       body = new byte[0];
 
     if (mimetype == null)
       mimetype = "text/plain";
 
     setHeader("Content-Type",mimetype);
-    setHeader("Content-Length",body.length);
+
+    if (file != null) setHeader("Content-Length",length+"");
+    else if (!streamed) setHeader("Content-Length",body.length);
+    else if (length >= 0) setHeader("Content-Length",length+"");
+    else setHeader("Transfer-Encoding","chunked");
 
     if (this.response == null) setResponse(200);
   }
 
 
+  /**
+   *
+   * The body is written by a HTTPStream. Unless the length
+   * is known up front, the body is sent in chunks.
+   *
+   */
+  void streamed(long length)
+  {
+    this.body = null;
+    this.length = length;
+    this.streamed = true;
+  }
+
+
+  boolean chunked()
+  {
+    return(streamed && length < 0);
+  }
+
+
   public void setResponse(int code)
   {
     this.response = HTTPCodes.get(code);
@@ -215,6 +246,166 @@ public class HTTPResponse
   }
 
 
+  /**
+   *
+   * The body is sent directly from the file, without being read into memory.
+   *
+   */
+  public void setBody(File file)
+  {
+    this.body = null;
+    this.file = file;
+    this.length = file.length();
+    this.ranges = new long[][] {{0,length}};
+  }
+
+
+  /**
+   *
+   * Send only the given ranges ([start,length]) of the file.
+   * A single range is sent as is, several as multipart/byteranges.
+   * The content type must be set first.
+   *
+   */
+  public void setRanges(File file, long[][] ranges)
+  {
+    this.body = null;
+    this.file = file;
+    ranges(ranges,file.length());
+  }
+
+
+  /**
+   *
+   * Send only the given ranges ([start,length]) of the content.
+   * The content type must be set first.
+   *
+   */
+  public void setRanges(byte[] content, long[][] ranges)
+  {
+    ranges(ranges,content.length);
+
+    int pos = 0;
+    this.body = new byte[(int) length];
+
+    for (int i = 0; i < ranges.length; i++)
+    {
+      if (parts != null)
+      {
+        System.arraycopy(parts[i],0,body,pos,parts[i].length);
+        pos += parts[i].length;
+      }
+
+      int len = (int) ranges[i][1];
+      System.arraycopy(content,(int) ranges[i][0],body,pos,len);
+      pos += len;
+    }
+
+    if (parts != null)
+      System.arraycopy(parts[ranges.length],0,body,pos,parts[ranges.length].length);
+
+    this.parts = null;
+    this.ranges = null;
+  }
+
+
+  /**
+   *
+   * None of the requested ranges are within the content
+   *
+   */
+  public void setUnsatisfiable(long size)
+  {
+    setResponse(416);
+    setHeader("Content-Range","bytes */"+size);
+  }
+
+
+  private void ranges(long[][] ranges, long size)
+  {
+    setResponse(206);
+    this.ranges = ranges;
+
+    if (ranges.length == 1)
+    {
+      this.parts = null;
+      this.length = ranges[0][1];
+      setHeader("Content-Range",range(ranges[0],size));
+      return;
+    }
+
+    String type = mimetype;
+    if (type == null) type = "application/octet-stream";
+
+    String boundary = Long.toHexString(System.nanoTime());
+
+    this.length = 0;
+    this.parts = new byte[ranges.length+1][];
+
+    for (int i = 0; i < ranges.length; i++)
+    {
+      String part = EOL+"--"+boundary+EOL;
+      if (i == 0) part = part.substring(EOL.length());
+
+      part += "Content-Type: "+type+EOL;
+      part += "Content-Range: "+range(ranges[i],size)+EOL+EOL;
+
+      parts[i] = part.getBytes();
+      this.length += parts[i].length + ranges[i][1];
+    }
+
+    parts[ranges.length] = (EOL+"--"+boundary+"--"+EOL).getBytes();
+    this.length += parts[ranges.length].length;
+
+    this.mimetype = "multipart/byteranges; boundary="+boundary;
+  }
+
+
+  private static String range(long[] range, long size)
+  {
+    return("bytes "+range[0]+"-"+(range[0]+range[1]-1)+"/"+size);
+  }
+
+
+  File file()
+  {
+    return(file);
+  }
+
+
+  long[][] ranges()
+  {
+    return(ranges);
+  }
+
+
+  byte[][] parts()
+  {
+    return(parts);
+  }
+
+
+  /**
+   *
+   * Last occurrence of a header set on the response
+   *
+   */
+  public String getHeader(String header)
+  {
+    String prefix = header.toLowerCase()+":";
+
+    for (int i = headers.size() - 1; i >= 0; i--)
+    {
+      String h = headers.get(i);
+
+      if (h.toLowerCase().startsWith(prefix))
+        return(h.substring(prefix.length()).trim());
+    }
+
+    return(null);
+  }
+
+
   public void setBody(byte[] body, int pos, int len)
   {
     this.body = new byte[len];
@@ -256,6 +447,8 @@ public class HTTPResponse
     if (page != null) return(page);
 
     byte[] head = header().getBytes();
+    if (this.body == null) return(head);
+
     this.page = new byte[head.length+this.body.length];
 
     System.arraycopy(head,0,page,0,head.length);
@@ -265,6 +458,25 @@ public class HTTPResponse
   }
 
 
+  /**
+   *
+   * The response as header and body, for gathering writes.
+   *
+   */
+  public ByteBuffer[] buffers()
+  {
+    if (!finished) finish();
+
+    if (page != null)
+      return(new ByteBuffer[] {ByteBuffer.wrap(page)});
+
+    ByteBuffer head = ByteBuffer.wrap(header().getBytes());
+    if (this.body == null) return(new ByteBuffer[] {head});
+
+    return(new ByteBuffer[] {head,ByteBuffer.wrap(body)});
+  }
+
+
   private int hlength(byte[] data)
   {
     for (int h = 0; h < data.length-3; h++)
@@ -26,6 +26,7 @@ import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.Selector;
 import database.rest.config.Config;
 import database.rest.servers.Server;
@@ -39,12 +40,13 @@ import database.rest.handlers.file.Deployment;
 public class HTTPServer extends Thread
 {
   private final int port;
-  private final int timeout;
+  private final int acceptors;
   private final boolean ssl;
   private final Server server;
   private final Config config;
   private final boolean admin;
   private final boolean embedded;
+  private final boolean reuseport;
   private final Selector selector;
   private final ThreadPool workers;
   private final HTTPServerType type;
@@ -66,10 +68,13 @@ public class HTTPServer extends Thread
     this.embedded = embedded;
     this.config = server.config();
     this.selector = Selector.open();
-    this.timeout = config.getHTTP().timeout;
+    this.acceptors = type == HTTPServerType.admin ? 1 : Math.max(1,config.getHTTP().acceptors);
+    this.reuseport = config.getHTTP().reuseport;
 
     config.getPKIContext(); // Initialize ssl
     HTTPBuffers.setSize(config.getHTTP().bufsize);
+    HTTPBufferPool.setSize(config.getHTTP().poolsize,config.getHTTP().pooltotal);
+    SSLHandshake.init(config.getSecurity().handshakers(),config.getSecurity().handshakeQueue());
 
     switch(type)
     {
@@ -81,10 +86,9 @@ public class HTTPServer extends Thread
 
     this.setDaemon(true);
     this.setName("HTTPServer("+type+")");
-    this.workers = new ThreadPool(config.getTopology().workers);
+    ThreadPool.setLimits(config.getTopology().queue,config.getTopology().qtime);
+    this.workers = new ThreadPool(config.getTopology().workers,config.getTopology().virtual);
     this.waiters = new HTTPWaiterPool(server,embedded,config.getTopology().waiters);
-
-    HTTPReaper.start(logger,waiters,timeout);
   }
 
 
@@ -139,18 +143,66 @@ public class HTTPServer extends Thread
   // Assign a waiter for the client
   void assign(HTTPChannel client)
   {
-    try {waiters.getWaiter().addClient(client);}
+    assign(client,0);
+  }
+
+
+  // Assign one of the acceptor's own waiters
+  void assign(HTTPChannel client, int acceptor)
+  {
+    try {waiters.getWaiter(acceptor,acceptors).addClient(client);}
     catch (Exception e) {logger.log(Level.SEVERE,e.getMessage(),e);}
   }
 
 
-  private void select() throws Exception
+  private void select(Selector selector) throws Exception
   {
     while(selector.select() == 0)
       logger.warning("selector woke up empty handed");
   }
 
 
+  /**
+   *
+   * With SO_REUSEPORT each acceptor has its own listener, and the
+   * kernel spreads connections between them. Otherwise all acceptors
+   * share one listener, registered with each acceptor's selector.
+   *
+   */
+  private ServerSocketChannel[] listen() throws Exception
+  {
+    ServerSocketChannel[] listeners = new ServerSocketChannel[acceptors];
+
+    ServerSocketChannel server = ServerSocketChannel.open();
+    boolean reuse = reuseport && acceptors > 1;
+
+    if (reuse && !server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+    {
+      reuse = false;
+      logger.warning("SO_REUSEPORT not supported, acceptors will share listener");
+    }
+
+    for (int i = 0; i < acceptors; i++)
+    {
+      if (i > 0 && !reuse)
+      {
+        listeners[i] = server;
+        continue;
+      }
+
+      if (i > 0) server = ServerSocketChannel.open();
+      if (reuse) server.setOption(StandardSocketOptions.SO_REUSEPORT,true);
+
+      server.configureBlocking(false);
+      server.bind(new InetSocketAddress(port));
+
+      listeners[i] = server;
+    }
+
+    return(listeners);
+  }
+
+
   public void run()
   {
     if (port <= 0)
@@ -164,73 +216,87 @@ public class HTTPServer extends Thread
     try
     {
       Deployment.get().deploy();
-      ServerSocketChannel server = ServerSocketChannel.open();
+      ServerSocketChannel[] listeners = listen();
 
-      server.configureBlocking(false);
-      server.bind(new InetSocketAddress(port));
-      server.register(selector,SelectionKey.OP_ACCEPT);
+      for (int i = 1; i < acceptors; i++)
+        new HTTPAcceptor(this,listeners[i],i).start();
 
       state = RUNNING;
+      accept(listeners[0],selector,0);
+    }
+    catch (Exception e)
+    {
+      logger.log(Level.SEVERE,e.getMessage(),e);
+    }
+
+    state = STOPPED;
+    logger.info("HTTPServer("+type+") stopped");
+
+    try
+    {
+      if (!this.server.config().getTopology().hot)
+        System.exit(0);
+    }
+    catch (Exception e) {;}
+  }
 
-      while(true)
+
+  void accept(ServerSocketChannel server, Selector selector, int acceptor) throws Exception
+  {
+    server.register(selector,SelectionKey.OP_ACCEPT);
+
+    while(true)
+    {
+      try
       {
-        try
-        {
-          select();
+        select(selector);
 
-          Set<SelectionKey> selected = selector.selectedKeys();
-          Iterator<SelectionKey> iterator = selected.iterator();
+        Set<SelectionKey> selected = selector.selectedKeys();
+        Iterator<SelectionKey> iterator = selected.iterator();
 
-          while(iterator.hasNext())
+        while(iterator.hasNext())
+        {
+          SelectionKey key = iterator.next();
+          iterator.remove();
+
+          if (key.isAcceptable())
           {
-            SelectionKey key = iterator.next();
-            iterator.remove();
+            SocketChannel channel = server.accept();
 
-            if (key.isAcceptable())
-            {
-              SocketChannel channel = server.accept();
-              logger.finest("Incoming request "+channel.getRemoteAddress());
+            // Taken by another acceptor sharing the listener
+            if (channel == null) continue;
 
-              channel.configureBlocking(false);
+            logger.finest("Incoming request "+channel.getRemoteAddress());
+            channel.configureBlocking(false);
 
-              if (ssl)
-              {
-                // Don't block while handshaking
-                SSLHandshake ses = new SSLHandshake(this,key,channel,admin);
-                workers.submit(ses);
-              }
-              else
+            if (ssl)
+            {
+              // Don't block while handshaking
+              SSLHandshake ses = new SSLHandshake(this,acceptor,channel,admin);
+
+              if (!SSLHandshake.submit(ses))
               {
-                // Overkill to use threadpool
-                HTTPChannel client = new HTTPChannel(this.server,workers,channel,ssl,admin);
-                if (client.accept()) this.assign(client);
+                logger.warning("Server busy, refusing connection");
+                channel.close();
               }
             }
             else
             {
-              logger.warning("Key is not acceptable");
+              // Overkill to use threadpool
+              HTTPChannel client = new HTTPChannel(this.server,workers,channel,ssl,admin);
+              if (client.accept()) this.assign(client,acceptor);
             }
           }
-        }
-        catch (Exception e)
-        {
-          logger.log(Level.SEVERE,e.getMessage(),e);
+          else
+          {
+            logger.warning("Key is not acceptable");
+          }
         }
       }
+      catch (Exception e)
+      {
+        logger.log(Level.SEVERE,e.getMessage(),e);
+      }
     }
-    catch (Exception e)
-    {
-      logger.log(Level.SEVERE,e.getMessage(),e);
-    }
-
-    state = STOPPED;
-    logger.info("HTTPServer("+type+") stopped");
-
-    try
-    {
-      if (!this.server.config().getTopology().hot)
-        System.exit(0);
-    }
-    catch (Exception e) {;}
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,234 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package database.rest.servers.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ *
+ * Lets a handler write the body of a response while it is produced,
+ * instead of materializing it first. Unless the length is given,
+ * the body is sent using Transfer-Encoding: chunked.
+ * Data is buffered up to the network buffer size before it is written.
+ * Writes block when the client does not keep up.
+ *
+ * The handler must close the stream and return null.
+ *
+ */
+public class HTTPStream extends OutputStream
+{
+  private int pos;
+  private long sent = 0;
+  private boolean closed = false;
+
+  private final long length;
+  private final byte[] buffer;
+  private final boolean chunked;
+  private final HTTPRequest request;
+  private final HTTPChannel channel;
+
+  // Room for chunk size (hex) + CRLF
+  private final static int PREFIX = 10;
+  private final static byte[] EOL = "\r\n".getBytes();
+  private final static byte[] LAST = "0\r\n\r\n".getBytes();
+
+
+  HTTPStream(HTTPRequest request, HTTPResponse response, long length, int bufsize) throws Exception
+  {
+    this.length = length;
+    this.request = request;
+    this.channel = request.channel();
+
+    response.streamed(length);
+    this.chunked = response.chunked();
+
+    int prefix = chunked ? PREFIX : 0;
+    int suffix = chunked ? EOL.length : 0;
+
+    this.pos = prefix;
+    this.buffer = new byte[prefix + bufsize + suffix];
+
+    request.acquire();
+
+    try
+    {
+      channel.write(response.header().getBytes());
+    }
+    catch (Exception e)
+    {
+      abort();
+      throw e;
+    }
+  }
+
+
+  public long sent()
+  {
+    return(sent);
+  }
+
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    if (pos == buffer.length - suffix()) flush();
+    buffer[pos++] = (byte) b;
+  }
+
+
+  @Override
+  public void write(byte[] data, int off, int len) throws IOException
+  {
+    if (closed)
+      throw new IOException("Stream closed");
+
+    while(len > 0)
+    {
+      int room = buffer.length - suffix() - pos;
+      if (room == 0) {flush(); continue;}
+
+      int chunk = len < room ? len : room;
+      System.arraycopy(data,off,buffer,pos,chunk);
+
+      pos += chunk;
+      off += chunk;
+      len -= chunk;
+    }
+  }
+
+
+  @Override
+  public void flush() throws IOException
+  {
+    int prefix = prefix();
+    int size = pos - prefix;
+
+    if (size == 0)
+      return;
+
+    if (length >= 0 && sent + size > length)
+      throw new IOException("Response exceeds Content-Length "+length);
+
+    try
+    {
+      if (!chunked)
+      {
+        channel.write(buffer,0,pos);
+      }
+      else
+      {
+        byte[] head = (Integer.toHexString(size)).getBytes();
+        int start = prefix - head.length - EOL.length;
+
+        System.arraycopy(head,0,buffer,start,head.length);
+        System.arraycopy(EOL,0,buffer,prefix-EOL.length,EOL.length);
+        System.arraycopy(EOL,0,buffer,pos,EOL.length);
+
+        channel.write(buffer,start,pos + EOL.length - start);
+      }
+    }
+    catch (IOException e)
+    {
+      throw e;
+    }
+    catch (Exception e)
+    {
+      throw new IOException(e.getMessage(),e);
+    }
+
+    sent += size;
+    pos = prefix;
+  }
+
+
+  @Override
+  public void close() throws IOException
+  {
+    if (closed)
+      return;
+
+    try
+    {
+      flush();
+      if (chunked) channel.write(LAST);
+
+      if (length >= 0 && sent != length)
+        throw new IOException("Response was "+sent+" bytes, Content-Length "+length);
+    }
+    catch (IOException e)
+    {
+      channel.failed();
+      throw e;
+    }
+    catch (Exception e)
+    {
+      channel.failed();
+      throw new IOException(e.getMessage(),e);
+    }
+    finally
+    {
+      closed = true;
+
+      try {request.release();}
+      catch (Exception e) {;}
+    }
+  }
+
+
+  boolean closed()
+  {
+    return(closed);
+  }
+
+
+  /**
+   *
+   * The response cannot be completed. The connection is closed,
+   * since the client has received part of it.
+   *
+   */
+  void abort()
+  {
+    if (closed)
+      return;
+
+    closed = true;
+    channel.failed();
+
+    try {request.release();}
+    catch (Exception e) {;}
+  }
+
+
+  private int prefix()
+  {
+    return(chunked ? PREFIX : 0);
+  }
+
+
+  private int suffix()
+  {
+    return(chunked ? EOL.length : 0);
+  }
+}
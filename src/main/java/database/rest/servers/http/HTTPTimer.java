@@ -0,0 +1,113 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package database.rest.servers.http;
+
+import java.util.ArrayList;
+
+
+/**
+ *
+ * Hashed timing wheel, owned and used by a single waiter thread.
+ * Each channel sits in the slot of its next deadline. Touching a channel
+ * does not move it, instead it is rescheduled when its slot comes due,
+ * so a tick only visits channels that are due or were active.
+ *
+ */
+class HTTPTimer
+{
+  private int pos = 0;
+  private long next = 0;
+
+  private final ArrayList<HTTPChannel>[] slots;
+
+  private final static int TICK = 250;
+  private final static int SLOTS = 256;
+  private final static int MASK = SLOTS - 1;
+
+
+  @SuppressWarnings({"unchecked","rawtypes"})
+  HTTPTimer()
+  {
+    this.slots = new ArrayList[SLOTS];
+    this.next = System.currentTimeMillis() + TICK;
+
+    for (int i = 0; i < SLOTS; i++)
+      slots[i] = new ArrayList<HTTPChannel>();
+  }
+
+
+  /**
+   *
+   * Deadlines beyond one revolution are placed in the last slot,
+   * and rescheduled from there.
+   *
+   */
+  void schedule(HTTPChannel client, long deadline)
+  {
+    long ticks = (deadline - next + TICK - 1) / TICK;
+
+    if (ticks < 0) ticks = 0;
+    if (ticks > MASK) ticks = MASK;
+
+    slots[(pos + (int) ticks) & MASK].add(client);
+  }
+
+
+  /**
+   *
+   * Milliseconds until next tick.
+   *
+   */
+  long delay(long now)
+  {
+    long delay = next - now;
+    return(delay < 1 ? 1 : delay);
+  }
+
+
+  boolean due(long now)
+  {
+    return(now >= next);
+  }
+
+
+  /**
+   *
+   * Move all channels from slots that are due to expired.
+   *
+   */
+  void expired(long now, ArrayList<HTTPChannel> expired)
+  {
+    // After a long stall, no need to go around more than once
+    if (now - next > SLOTS * TICK)
+      next = now - (SLOTS - 1) * TICK;
+
+    while(now >= next)
+    {
+      expired.addAll(slots[pos]);
+      slots[pos].clear();
+
+      pos = (pos + 1) & MASK;
+      next += TICK;
+    }
+  }
+}
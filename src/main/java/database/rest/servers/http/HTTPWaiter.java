@@ -21,9 +21,8 @@
 
 package database.rest.servers.http;
 
-import java.util.Map;
 import java.util.Set;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.ArrayList;
 import java.nio.ByteBuffer;
@@ -35,11 +34,12 @@ import database.rest.servers.Server;
 import database.rest.pools.ThreadPool;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 class HTTPWaiter extends Thread
 {
+  private final int id;
   private final int timeout;
   private final Server server;
   private final Config config;
@@ -49,17 +49,27 @@ class HTTPWaiter extends Thread
   private final ArrayList<HTTPChannel> queue =
     new ArrayList<HTTPChannel>();
 
-  private final HashSet<HTTPChannel> connected =
-    new HashSet<HTTPChannel>();
+  private final HTTPTimer timer =
+    new HTTPTimer();
 
-  private final ConcurrentHashMap<SelectionKey,HTTPRequest> incomplete =
-    new ConcurrentHashMap<SelectionKey,HTTPRequest>();
+  private final ArrayList<HTTPChannel> expired =
+    new ArrayList<HTTPChannel>();
+
+  private final HashMap<HTTPChannel,HTTPRequest> incomplete =
+    new HashMap<HTTPChannel,HTTPRequest>();
+
+  // Load figures, read without locking by HTTPWaiterPool
+  private volatile int keys = 0;
+  private volatile double rate = 0;
+  private volatile long rated = System.currentTimeMillis();
+  private final AtomicInteger pending = new AtomicInteger();
 
   private final static Logger logger = Logger.getLogger("http");
 
 
   HTTPWaiter(Server server, int id, boolean embedded) throws Exception
   {
+    this.id = id;
     this.server = server;
     this.config = server.config();
     this.selector = Selector.open();
@@ -67,7 +77,7 @@ class HTTPWaiter extends Thread
 
     this.setDaemon(true);
     this.setName("HTTPWaiter("+id+")");
-    this.workers = new ThreadPool(config.getTopology().workers);
+    this.workers = new ThreadPool(config.getTopology().workers,config.getTopology().virtual);
 
     this.start();
   }
@@ -79,6 +89,34 @@ class HTTPWaiter extends Thread
   }
 
 
+  int id()
+  {
+    return(id);
+  }
+
+
+  /**
+   *
+   * Channels registered or about to be registered with this waiter.
+   *
+   */
+  int load()
+  {
+    return(keys + pending.get());
+  }
+
+
+  /**
+   *
+   * Ready keys, decaying by half every second.
+   *
+   */
+  double rate()
+  {
+    return(rate * Math.pow(0.5,(System.currentTimeMillis() - rated)/1000.0));
+  }
+
+
   void unlist(SelectionKey key)
   {
     key.cancel();
@@ -87,6 +125,8 @@ class HTTPWaiter extends Thread
 
   void addClient(HTTPChannel client) throws Exception
   {
+    pending.incrementAndGet();
+
     synchronized(this)
     {queue.add(client);}
     selector.wakeup();
@@ -100,35 +140,54 @@ class HTTPWaiter extends Thread
     while(ready == 0)
     {
       boolean add = false;
+      long now = System.currentTimeMillis();
 
       synchronized(this)
       {
         for(HTTPChannel client : queue)
         {
           add = true;
-          connected.add(client);
 
           try
           {
             if (client.channel().isOpen())
+            {
               client.channel().register(selector,SelectionKey.OP_READ,client);
+              timer.schedule(client,now + timeout);
+            }
           }
           catch (Exception e)
           {
             e.printStackTrace();
-            connected.remove(client);
           }
         }
 
+        pending.addAndGet(-queue.size());
         queue.clear();
       }
 
       if (add) Thread.yield();
-      ready = selector.select();
+
+      if (timer.due(now))
+        expire(now);
+
+      keys = selector.keys().size();
+      ready = selector.select(timer.delay(now));
+      keys = selector.keys().size();
+
+      rated(ready);
     }
   }
 
 
+  private void rated(int ready)
+  {
+    long now = System.currentTimeMillis();
+    rate = rate * Math.pow(0.5,(now - rated)/1000.0) + ready;
+    rated = now;
+  }
+
+
   @Override
   public void run()
   {
@@ -174,35 +233,64 @@ class HTTPWaiter extends Thread
 
             int read = buf.remaining();
 
+            if (read == 0)
+              HTTPBufferPool.release(buf);
+
             if (read > 0)
             {
-              boolean done = false;
-              HTTPRequest request = incomplete.remove(key);
+              HTTPRequest request = incomplete.remove(client);
               if (request == null) request = new HTTPRequest(this,client,key);
 
+              boolean done = false;
+
               try
               {
-                if (!request.add(buf)) incomplete.put(key,request);
-                else done = true;
+                done = request.add(buf);
               }
               catch (Exception e)
               {
+                request.cleanup();
                 logger.log(Level.SEVERE,e.getMessage(),e);
-                error(channel,400,false);
+                error(client,request.sequence(),request.rejected());
                 continue;
               }
-
-              try
+              finally
               {
-                logger.finest("Request "+request.path()+" submit "+done);
-                if (done) workers.submit(new HTTPWorker(workers,request));
+                HTTPBufferPool.release(buf);
               }
-              catch (Exception e)
+
+              // Pipelined requests are handed to workers in order received
+
+              while(done)
               {
-                logger.log(Level.SEVERE,e.getMessage(),e);
-                error(channel,500,false);
-                continue;
+                byte[] next = request.remainder();
+
+                if (!submit(client,request))
+                  break;
+
+                if (next == null)
+                  break;
+
+                request = new HTTPRequest(this,client,key);
+
+                try
+                {
+                  done = request.add(next);
+                }
+                catch (Exception e)
+                {
+                  request.cleanup();
+                  logger.log(Level.SEVERE,e.getMessage(),e);
+                  error(client,request.sequence(),request.rejected());
+                  request = null;
+                  break;
+                }
               }
+
+              if (request != null && !done)
+                incomplete.put(client,request);
+
+              client.throttle(key);
             }
           }
           else
@@ -219,84 +307,145 @@ class HTTPWaiter extends Thread
   }
 
 
-  void cleanout()
+  private boolean submit(HTTPChannel client, HTTPRequest request)
   {
-    ArrayList<SelectionKey> cancelled = new ArrayList<SelectionKey>();
+    client.sequence(request);
+
+    // Held until the requests before it are answered
+    if (!client.admit(request))
+      return(true);
+
+    return(dispatch(request));
+  }
+
 
-    for(Map.Entry<SelectionKey,HTTPRequest> entry : incomplete.entrySet())
-      if (entry.getValue().cancelled()) cancelled.add(entry.getKey());
+  boolean dispatch(HTTPRequest request)
+  {
+    HTTPChannel client = request.channel();
 
-    for(SelectionKey key : cancelled)
+    try
     {
-      incomplete.remove(key);
-      logger.info("Removing incomplete request");
+      logger.finest("Request "+request.path()+" submit");
 
-      try
-      {
-        ByteBuffer buf = ByteBuffer.allocate(1024);
-        SocketChannel rsp = (SocketChannel) key.channel();
-        buf.put(err400(false));
-        buf.position(0);
-        rsp.write(buf);
-        rsp.close();
-      }
-      catch (Exception e) {;}
+      HTTPWorker worker = new HTTPWorker(workers,request);
+
+      // Answer at once rather than queue beyond the limit
+      if (!workers.submit(worker)) worker.reject();
+      return(true);
+    }
+    catch (Exception e)
+    {
+      logger.log(Level.SEVERE,e.getMessage(),e);
+      error(client,request.sequence(),500);
+      return(false);
     }
+  }
 
-    long now = System.currentTimeMillis();
-    HTTPChannel[] open = connected.toArray(new HTTPChannel[0]);
 
-    for(HTTPChannel client : open)
+  /**
+   *
+   * Called from select when the timer ticks. Only channels whose slot
+   * is due are visited. Channels that have been active, or are busy,
+   * are rescheduled to their next deadline.
+   *
+   */
+  private void expire(long now)
+  {
+    timer.expired(now,expired);
+
+    for(HTTPChannel client : expired)
     {
-      boolean timedout = now - client.touched() > timeout;
-      boolean connected = client.channel().isConnected() || client.channel().isOpen();
+      SocketChannel channel = client.channel();
+      HTTPRequest request = incomplete.get(client);
 
-      if (!connected || (timedout && !client.stayalive()))
+      if (!channel.isOpen())
       {
-        this.connected.remove(client);
-        if (timedout) logger.fine("Client KeepAlive timed out");
+        incomplete.remove(client);
+        if (request != null) request.cleanup();
+        continue;
+      }
 
-        if (connected && !client.ssl())
+      if (request != null && request.deadline() <= now)
+      {
+        incomplete.remove(client);
+        request.cleanup();
+        logger.info("Removing incomplete request");
+        error(client,request.sequence(),400);
+        continue;
+      }
+
+      long deadline = client.touched() + timeout;
+
+      if (deadline <= now)
+      {
+        if (!client.stayalive() && !client.busy())
         {
-          try {client.channel().close();}
-          catch(Exception e) {;}
+          logger.fine("Client KeepAlive timed out");
+
+          if (!client.ssl())
+          {
+            try {channel.close();}
+            catch(Exception e) {;}
+          }
+
+          continue;
         }
+
+        deadline = now + timeout;
       }
+
+      if (request != null && request.deadline() < deadline)
+        deadline = request.deadline();
+
+      timer.schedule(client,deadline);
     }
+
+    expired.clear();
   }
 
 
   public static final String EOL = "\r\n";
 
 
-  public static void error(SocketChannel channel, int code, boolean rest)
+  /**
+   *
+   * Errors are queued behind responses that workers are still writing
+   * on the connection, which is then closed. Nothing more is read from it.
+   *
+   */
+  private void error(HTTPChannel client, long seq, int code)
   {
-    ByteBuffer buf = ByteBuffer.allocate(1024);
+    byte[] data = null;
 
     switch(code)
     {
       case 400:
-        buf.put(err400(rest));
+        data = err400(false);
+        break;
+
+      case 413:
+        data = err413(false);
         break;
 
-      case 500:
-        buf.put(err500(rest));
+      case 501:
+        data = err501(false);
         break;
 
       default:
-        buf.put(err500(rest));
+        data = err500(false);
         break;
     }
 
+    SelectionKey key = client.channel().keyFor(selector);
+    if (key != null) key.cancel();
+
     try
     {
-      buf.position(0);
-      channel.write(buf);
-      channel.close();
+      client.error(seq,data);
     }
     catch (Exception e)
     {
-      try {channel.close();}
+      try {client.channel().close();}
       catch (Exception c) {;}
     }
   }
@@ -315,6 +464,46 @@ class HTTPWaiter extends Thread
   }
 
 
+  public static byte[] err413(boolean rest)
+  {
+    String msg = "<b>Payload Too Large</b>";
+    if (rest) msg = "{\"status\": \"failed\", \"message\": \"Payload Too Large\"}";
+
+    String page = "HTTP/1.1 413 Payload Too Large" + EOL +
+                  "Content-Type: text/html" + EOL +
+                  "Content-Length: "+msg.length() + EOL + EOL + msg;
+
+    return(page.getBytes());
+  }
+
+
+  public static byte[] err503(boolean rest)
+  {
+    String msg = "<b>Service Unavailable</b>";
+    if (rest) msg = "{\"status\": \"failed\", \"message\": \"Service Unavailable\"}";
+
+    String page = "HTTP/1.1 503 Service Unavailable" + EOL +
+                  "Content-Type: text/html" + EOL +
+                  "Retry-After: 1" + EOL +
+                  "Content-Length: "+msg.length() + EOL + EOL + msg;
+
+    return(page.getBytes());
+  }
+
+
+  public static byte[] err501(boolean rest)
+  {
+    String msg = "<b>Not Implemented</b>";
+    if (rest) msg = "{\"status\": \"failed\", \"message\": \"Not Implemented\"}";
+
+    String page = "HTTP/1.1 501 Not Implemented" + EOL +
+                  "Content-Type: text/html" + EOL +
+                  "Content-Length: "+msg.length() + EOL + EOL + msg;
+
+    return(page.getBytes());
+  }
+
+
   public static byte[] err500(boolean rest)
   {
     String msg = "<b>Internal Server Error</b>";
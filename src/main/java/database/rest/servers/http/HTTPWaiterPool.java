@@ -22,13 +22,13 @@
 package database.rest.servers.http;
 
 import database.rest.servers.Server;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class HTTPWaiterPool
 {
   private static HTTPWaiter[] waiters;
-  private static volatile short next = -1;
-  private static final Object LOCK = new Object();
+  private static final AtomicInteger next = new AtomicInteger();
 
 
   public HTTPWaiterPool(Server server, boolean embedded, short threads) throws Exception
@@ -51,11 +51,49 @@ public class HTTPWaiterPool
 
   public HTTPWaiter getWaiter()
   {
-    synchronized(LOCK)
+    return(getWaiter(0,1));
+  }
+
+
+  /**
+   *
+   * Pick the waiter with fewest channels, and among those the one
+   * with the lowest recent activity. The scan starts at a rotating
+   * offset, so ties are spread evenly.
+   *
+   * With several acceptors, each acceptor only uses its own group,
+   * every groups'th waiter starting at group.
+   *
+   */
+  public HTTPWaiter getWaiter(int group, int groups)
+  {
+    if (groups > waiters.length) groups = waiters.length;
+    group = group % groups;
+
+    int len = (waiters.length - group + groups - 1) / groups;
+    int start = (next.getAndIncrement() & Integer.MAX_VALUE) % len;
+
+    HTTPWaiter best = waiters[group + start * groups];
+    int load = best.load();
+    double rate = best.rate();
+
+    for (int i = 1; i < len && load > 0; i++)
     {
-      next = (short) (++next % waiters.length);
-      return(waiters[next]);
+      HTTPWaiter waiter = waiters[group + ((start + i) % len) * groups];
+      int wload = waiter.load();
+
+      if (wload > load) continue;
+      double wrate = waiter.rate();
+
+      if (wload < load || wrate < rate)
+      {
+        best = waiter;
+        load = wload;
+        rate = wrate;
+      }
     }
+
+    return(best);
   }
 
 
@@ -63,4 +101,32 @@ public class HTTPWaiterPool
   {
     return(waiters);
   }
+
+
+  public static int[] connections()
+  {
+    if (waiters == null)
+      return(new int[0]);
+
+    int[] conns = new int[waiters.length];
+
+    for (int i = 0; i < conns.length; i++)
+      conns[i] = waiters[i].load();
+
+    return(conns);
+  }
+
+
+  public static double[] rates()
+  {
+    if (waiters == null)
+      return(new double[0]);
+
+    double[] rates = new double[waiters.length];
+
+    for (int i = 0; i < rates.length; i++)
+      rates[i] = waiters[i].rate();
+
+    return(rates);
+  }
 }
\ No newline at end of file
@@ -26,9 +26,12 @@ import java.util.logging.Logger;
 import database.rest.config.Handlers;
 import database.rest.handlers.Handler;
 import database.rest.pools.ThreadPool;
+import database.rest.pools.Rejectable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 
-public class HTTPWorker implements Runnable
+public class HTTPWorker implements Rejectable
 {
   private final Logger logger;
   private final Handlers handlers;
@@ -52,6 +55,8 @@ public class HTTPWorker implements Runnable
   @Override
   public void run()
   {
+    boolean pending = false;
+
     try
     {
       request.parse();
@@ -76,7 +81,6 @@ public class HTTPWorker implements Runnable
 
         request.respond(response.page());
         this.channel.stayalive(false);
-        channel.workers().done();
 
         return;
       }
@@ -91,29 +95,112 @@ public class HTTPWorker implements Runnable
       {
         logger.warning("No appropiate handler mapped to path="+path+" method="+method);
 
-        this.workers.done();
         this.channel.stayalive(false);
 
-        try {request.respond(HTTPWaiter.err500(false));} catch (Exception ex) {;}
-        this.channel.failed();
+        try {request.fail(HTTPWaiter.err500(false));}
+        catch (Exception ex) {this.channel.failed();}
 
         return;
       }
 
-      HTTPResponse response = handler.handle(request);
-      if (response != null) request.respond(response.page());
+      CompletableFuture<HTTPResponse> response = handler.handleAsync(request);
+
+      if (!response.isDone())
+      {
+        pending = true;
+        response.whenComplete((resp,err) -> completed(resp,err));
+        return;
+      }
 
-      channel.workers().done();
+      respond(response.join());
     }
     catch(Throwable e)
     {
-      this.workers.done();
-      logger.log(Level.SEVERE,e.getMessage(),e);
-      try {request.respond(HTTPWaiter.err500(false));} catch (Exception ex) {;}
+      failed(e);
+    }
+    finally
+    {
+      if (!pending)
+      {
+        request.cleanup();
+        this.channel.stayalive(false);
+      }
+    }
+  }
+
+
+  /**
+   *
+   * The response is completed by another thread, typically the
+   * RESTReader. It is always written by a worker, so that thread is
+   * not held up by a slow client. The request was admitted already,
+   * so the queue limit does not apply.
+   *
+   */
+  private void completed(HTTPResponse response, Throwable err)
+  {
+    Runnable done = () ->
+    {
+      try
+      {
+        if (err == null) respond(response);
+        else if (err instanceof CompletionException) failed(err.getCause());
+        else failed(err);
+      }
+      catch(Throwable e)
+      {
+        failed(e);
+      }
+      finally
+      {
+        request.cleanup();
+        this.channel.stayalive(false);
+      }
+    };
+
+    workers.resume(done);
+  }
+
+
+  private void respond(HTTPResponse response) throws Exception
+  {
+    if (response != null) request.respond(response);
+    else request.close();
+  }
+
+
+  private void failed(Throwable e)
+  {
+    logger.log(Level.SEVERE,e.getMessage(),e);
+
+    // The header has been sent, or the stream was completed
+    if (request.streamed())
+    {
+      request.abort();
+      return;
+    }
+
+    try {request.fail(HTTPWaiter.err500(false));}
+    catch (Exception ex) {this.channel.failed();}
+  }
+
+
+  @Override
+  public void reject()
+  {
+    try
+    {
+      logger.fine("Request "+request.path()+" rejected, server busy");
+      request.respond(HTTPWaiter.err503(false));
+    }
+    catch (Exception e)
+    {
+      logger.log(Level.WARNING,e.getMessage(),e);
       this.channel.failed();
     }
     finally
     {
+      request.cleanup();
       this.channel.stayalive(false);
     }
   }
@@ -24,28 +24,125 @@ package database.rest.servers.http;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import database.rest.servers.Server;
+import java.util.concurrent.TimeUnit;
 import database.rest.pools.ThreadPool;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 
-class SSLHandshake extends Thread
+/**
+ *
+ * TLS handshakes run on their own bounded pool, so they don't
+ * compete with request workers. Handshakes that cannot be queued are refused.
+ * The admin port has a small pool of its own, so it stays reachable
+ * when the public ports are flooded with handshakes.
+ *
+ */
+public class SSLHandshake implements Runnable
 {
+  private final int acceptor;
   private final Logger logger;
   private final boolean admin;
   private final HTTPServer httpserv;
   private final SocketChannel channel;
 
+  private static ThreadPoolExecutor admins = null;
+  private static ThreadPoolExecutor handshakers = null;
 
-  SSLHandshake(HTTPServer httpserv, SelectionKey key, SocketChannel channel, boolean admin) throws Exception
+  private static final LongAdder failed = new LongAdder();
+  private static final LongAdder handshakes = new LongAdder();
+
+  private static final AtomicLong maxtime = new AtomicLong();
+  private static final AtomicLong tottime = new AtomicLong();
+
+
+  SSLHandshake(HTTPServer httpserv, int acceptor, SocketChannel channel, boolean admin) throws Exception
   {
     this.admin = admin;
+    this.acceptor = acceptor;
     this.channel = channel;
     this.httpserv = httpserv;
     this.logger = httpserv.logger();
   }
 
 
+  static synchronized void init(int threads, int queue)
+  {
+    if (handshakers != null)
+      return;
+
+    handshakers = new ThreadPoolExecutor(threads,threads,60,TimeUnit.SECONDS,new ArrayBlockingQueue<Runnable>(queue));
+    handshakers.allowCoreThreadTimeOut(true);
+
+    admins = new ThreadPoolExecutor(2,2,60,TimeUnit.SECONDS,new ArrayBlockingQueue<Runnable>(16));
+    admins.allowCoreThreadTimeOut(true);
+  }
+
+
+  /**
+   *
+   * Returns false if the handshake queue is full.
+   *
+   */
+  static boolean submit(SSLHandshake handshake)
+  {
+    try
+    {
+      if (handshake.admin) admins.execute(handshake);
+      else                 handshakers.execute(handshake);
+
+      return(true);
+    }
+    catch (RejectedExecutionException e)
+    {
+      failed.increment();
+      return(false);
+    }
+  }
+
+
+  public static void shutdown()
+  {
+    if (handshakers != null)
+      handshakers.shutdownNow();
+
+    if (admins != null)
+      admins.shutdownNow();
+  }
+
+
+  public static long handshakes()
+  {
+    return(handshakes.sum());
+  }
+
+
+  public static long failed()
+  {
+    return(failed.sum());
+  }
+
+
+  // Average in microseconds
+  public static long avgtime()
+  {
+    long count = handshakes.sum();
+    if (count == 0) return(0);
+    return(tottime.get()/count/1000);
+  }
+
+
+  // Max in microseconds
+  public static long maxtime()
+  {
+    return(maxtime.get()/1000);
+  }
+
+
   @Override
   public void run()
   {
@@ -55,15 +152,26 @@ class SSLHandshake extends Thread
       ThreadPool workers = httpserv.workers();
       HTTPChannel client = new HTTPChannel(server,workers,channel,true,admin);
 
-      if (client.accept())
-        httpserv.assign(client);
+      long start = System.nanoTime();
+
+      if (!client.accept())
+      {
+        failed.increment();
+        return;
+      }
+
+      long elapsed = System.nanoTime() - start;
+
+      handshakes.increment();
+      tottime.addAndGet(elapsed);
+      maxtime.accumulateAndGet(elapsed,Math::max);
 
-      httpserv.workers().done();
+      httpserv.assign(client,acceptor);
     }
     catch (Exception e)
     {
-      httpserv.workers().done();
+      failed.increment();
       logger.log(Level.SEVERE,e.getMessage(),e);
     }
   }
-}
\ No newline at end of file
+}
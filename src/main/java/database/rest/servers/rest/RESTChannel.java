@@ -0,0 +1,102 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package database.rest.servers.rest;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import database.rest.servers.http.HTTPChannel;
+
+
+/**
+ *
+ * One direction between HTTPServer and a RESTServer.
+ * Either an admin connection over tcp, a unix domain socket,
+ * or a shared memory ring next to the admin connection.
+ *
+ */
+class RESTChannel
+{
+  private final RESTRing ring;
+  private final HTTPChannel http;
+  private final SocketChannel unix;
+
+
+  RESTChannel(HTTPChannel http)
+  {
+    this(http,null);
+  }
+
+
+  /**
+   *
+   * With a ring, the admin connection is kept to tell if the
+   * other end is still connected, and to wake up a sleeping reader.
+   *
+   */
+  RESTChannel(HTTPChannel http, RESTRing ring)
+  {
+    this.http = http;
+    this.ring = ring;
+    this.unix = null;
+  }
+
+
+  RESTChannel(SocketChannel unix)
+  {
+    this.http = null;
+    this.ring = null;
+    this.unix = unix;
+  }
+
+
+  boolean connected()
+  {
+    if (unix != null) return(unix.isConnected());
+    return(http.connected());
+  }
+
+
+  InputStream input() throws Exception
+  {
+    if (ring != null) return(ring.input(http.socket()));
+    if (unix != null) return(Channels.newInputStream(unix));
+    return(http.socket().getInputStream());
+  }
+
+
+  OutputStream output() throws Exception
+  {
+    if (ring != null) return(ring.output(http.socket()));
+    if (unix != null) return(Channels.newOutputStream(unix));
+    return(http.socket().getOutputStream());
+  }
+
+
+  void close() throws Exception
+  {
+    if (unix != null) unix.close();
+    else              http.close();
+  }
+}
@@ -28,8 +28,14 @@ import java.util.logging.Logger;
 import database.rest.config.Config;
 import database.rest.servers.Server;
 import database.rest.cluster.MailBox;
+import java.nio.channels.SocketChannel;
 import database.rest.servers.http.HTTPChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class RESTClient implements RESTConnection
@@ -39,14 +45,17 @@ public class RESTClient implements RESTConnection
 
   private RESTWriter writer;
   private RESTReader reader;
-  private HTTPChannel rchannel;
-  private HTTPChannel wchannel;
+  private RESTChannel rchannel;
+  private RESTChannel wchannel;
   private volatile boolean up = false;
 
   private final Config config;
   private final Server server;
   private final MailBox mailbox;
-  private final ConcurrentHashMap<Long,RESTComm> incoming;
+  private volatile long latency = 0;
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicInteger inflight = new AtomicInteger();
+  private final ConcurrentHashMap<Long,CompletableFuture<RESTComm>> pending;
 
   private final static Logger logger = Logger.getLogger("http");
 
@@ -60,7 +69,7 @@ public class RESTClient implements RESTConnection
     this.server = server;
     this.config = server.config();
     this.mailbox = new MailBox(config,id);
-    this.incoming = new ConcurrentHashMap<Long,RESTComm>();
+    this.pending = new ConcurrentHashMap<Long,CompletableFuture<RESTComm>>();
   }
 
 
@@ -75,6 +84,24 @@ public class RESTClient implements RESTConnection
 
     channel.configureBlocking(true);
 
+    RESTRing ring = null;
+    boolean request = this.wchannel == null;
+
+    if (RESTRing.enabled(config))
+      ring = RESTRing.open(RESTRing.path(id,request));
+
+    init(new RESTChannel(channel,ring));
+  }
+
+
+  public void init(SocketChannel channel) throws Exception
+  {
+    init(new RESTChannel(channel));
+  }
+
+
+  private void init(RESTChannel channel) throws Exception
+  {
     if (this.wchannel == null) this.wchannel = channel;
     else                       this.rchannel = channel;
 
@@ -94,36 +121,117 @@ public class RESTClient implements RESTConnection
 
   public byte[] send(String host, byte[] data) throws Exception
   {
-    long id = thread();
+    try
+    {
+      return(sendAsync(host,data).get());
+    }
+    catch (ExecutionException e)
+    {
+      if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+      throw e;
+    }
+  }
+
+
+  /**
+   *
+   * Send a request without blocking. Each call has its own id, and the
+   * future is completed by the reader thread when the response arrives.
+   *
+   */
+  public CompletableFuture<byte[]> sendAsync(String host, byte[] data)
+  {
+    long id = sequence.incrementAndGet();
+
+    int size = data.length;
     int extend = mailbox.write(id,data);
-    writer.write(new RESTComm(id,extend,host.getBytes(),data));
 
-    RESTComm resp = null;
+    CompletableFuture<RESTComm> call = new CompletableFuture<RESTComm>();
+    pending.put(id,call);
 
-    synchronized(this)
+    if (!up)
     {
-      while(true)
-      {
-        resp = incoming.get(id);
+      pending.remove(id);
+      if (extend >= 0) mailbox.clear(id,extend,size);
+      return(CompletableFuture.failedFuture(new Exception("Lost connection to RESTServer")));
+    }
+
+    long sent = System.nanoTime();
+    inflight.incrementAndGet();
+
+    writer.write(new RESTComm(id,extend,host.getBytes(),data));
+
+    return(call.handle((resp,err) ->
+    {
+      byte[] page = null;
+      completed(resp != null,System.nanoTime()-sent);
 
-        if (resp != null) break;
-        if (!up) throw new Exception("Lost connection to RESTServer");
+      if (resp != null)
+      {
+        if (resp.extend() < 0) page = resp.page();
+        else page = mailbox.read(resp.extend(),resp.size);
 
-        this.wait();
+        if (resp.extend() >= 0 && resp.extend() != extend)
+          mailbox.clear(id,resp.extend(),resp.size);
       }
-    }
 
-    if (resp.extend() < 0) data = resp.page();
-    else data = mailbox.read(extend,resp.size);
+      if (extend >= 0) mailbox.clear(id,extend,size);
+
+      if (err != null) throw new CompletionException(err);
+      return(page);
+    }));
+  }
+
+
+  /**
+   *
+   * Response time is averaged exponentially, weight 1/8 as for tcp rtt.
+   * Responses are completed by the reader thread only, except when the
+   * connection fails, so the update does not need to be atomic.
+   *
+   */
+  private void completed(boolean success, long elapsed)
+  {
+    inflight.decrementAndGet();
+    if (!success) return;
+
+    long avg = latency;
+    if (avg == 0) latency = elapsed;
+    else latency = avg + (elapsed - avg) / 8;
+  }
+
 
-    if (extend >= 0) mailbox.clear(extend);
-    return(data);
+  /**
+   *
+   * Expected cost of sending one more request
+   *
+   */
+  public long load()
+  {
+    return((inflight.get() + 1) * Math.max(latency,1));
   }
 
 
-  private long thread()
+  public int inflight()
   {
-    return(Thread.currentThread().getId());
+    return(inflight.get());
+  }
+
+
+  /**
+   *
+   * False until the first response, load() is then only in flight + 1
+   *
+   */
+  public boolean sampled()
+  {
+    return(latency > 0);
+  }
+
+
+  public long latency()
+  {
+    return(latency / 1000);
   }
 
 
@@ -165,6 +273,15 @@ public class RESTClient implements RESTConnection
   {
     this.up = false;
     server.deregister(this);
+
+    Exception lost = new Exception("Lost connection to RESTServer");
+
+    for (Long id : pending.keySet())
+    {
+      CompletableFuture<RESTComm> call = pending.remove(id);
+      if (call != null) call.completeExceptionally(lost);
+    }
+
     logger.severe("RESTClient failed, bailing out");
   }
 
@@ -177,20 +294,25 @@ public class RESTClient implements RESTConnection
   @Override
   public InputStream reader() throws Exception
   {
-    return(rchannel.socket().getInputStream());
+    return(rchannel.input());
   }
 
   @Override
   public OutputStream writer() throws Exception
   {
-    return(wchannel.socket().getOutputStream());
+    return(wchannel.output());
   }
 
   @Override
   public void received(ArrayList<RESTComm> calls)
   {
     logger.fine("Client Received "+calls.size()+" response(s)");
-    for(RESTComm call : calls) incoming.put(call.id,call);
-    synchronized(this) {this.notifyAll();}
+
+    for(RESTComm resp : calls)
+    {
+      CompletableFuture<RESTComm> call = pending.remove(resp.id);
+      if (call != null) call.complete(resp);
+      else logger.warning("Received response for unknown call "+resp.id);
+    }
   }
 }
\ No newline at end of file
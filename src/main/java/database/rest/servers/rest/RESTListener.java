@@ -0,0 +1,134 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package database.rest.servers.rest;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import database.rest.servers.Server;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.ClosedChannelException;
+
+
+/**
+ *
+ * Accepts RESTServer channels on a unix domain socket.
+ * Same handshake as /connect on the admin port, but binary:
+ * Each side sends its id and start time.
+ *
+ */
+public class RESTListener extends Thread
+{
+  private final Server server;
+  private final ServerSocketChannel socket;
+  private final static Logger logger = Logger.getLogger("http");
+
+
+  public static void open(Server server)
+  {
+    try
+    {
+      if (!RESTSocket.enabled(server.config()))
+        return;
+
+      new RESTListener(server).start();
+    }
+    catch (Exception e)
+    {
+      logger.log(Level.SEVERE,e.getMessage(),e);
+      logger.severe("Unable to open unix domain socket for RESTServers");
+    }
+  }
+
+
+  private RESTListener(Server server) throws Exception
+  {
+    this.server = server;
+    this.setDaemon(true);
+    this.setName("RESTListener");
+    this.socket = RESTSocket.bind(RESTSocket.path(server.config()));
+  }
+
+
+  @Override
+  public void run()
+  {
+    logger.info("RESTListener ready");
+
+    while(true)
+    {
+      SocketChannel channel = null;
+
+      try
+      {
+        channel = socket.accept();
+        connect(channel);
+      }
+      catch (Exception e)
+      {
+        if (!socket.isOpen()) return;
+        logger.log(Level.WARNING,e.getMessage(),e);
+
+        try {if (channel != null) channel.close();}
+        catch (Exception ex) {;}
+      }
+    }
+  }
+
+
+  private void connect(SocketChannel channel) throws Exception
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(10);
+
+    while(buffer.hasRemaining())
+    {
+      if (channel.read(buffer) < 0)
+        throw new ClosedChannelException();
+    }
+
+    buffer.flip();
+
+    short id = buffer.getShort();
+    long started = buffer.getLong();
+
+    buffer.clear();
+    buffer.putShort(server.id());
+    buffer.putLong(server.started());
+    buffer.flip();
+
+    while(buffer.hasRemaining())
+      channel.write(buffer);
+
+    RESTClient worker = server.worker(id);
+
+    if (worker == null) logger.info("RESTServer connecting");
+    else logger.fine("RESTServer connecting secondary channel");
+
+    if (worker == null || started != worker.started())
+      worker = new RESTClient(server,id,started);
+
+    server.register(worker);
+    worker.init(channel);
+  }
+}
@@ -0,0 +1,359 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package database.rest.servers.rest;
+
+import java.io.File;
+import java.util.Set;
+import java.net.Socket;
+import java.util.HashSet;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+import java.nio.MappedByteBuffer;
+import java.lang.invoke.VarHandle;
+import database.rest.config.Paths;
+import database.rest.config.Config;
+import java.nio.channels.FileChannel;
+import java.lang.invoke.MethodHandles;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import static java.nio.file.StandardOpenOption.*;
+import java.nio.file.attribute.PosixFilePermission;
+
+
+/**
+ *
+ * Single producer, single consumer ring buffer in a mapped file.
+ * Used as the stream in one direction between HTTPServer and a RESTServer.
+ * The producer only moves head, and the consumer only moves tail, so
+ * no locks are needed. A waiting reader spins, then parks briefly. If
+ * still idle, it flags that it sleeps, and blocks on the admin
+ * connection kept next to the ring. The writer then sends one byte on
+ * that connection to wake it up. Both sides give up if the other
+ * process is gone, or the ring has been reset by a new connection.
+ *
+ */
+class RESTRing
+{
+  private final long session;
+  private final MappedByteBuffer shmmem;
+  private final static Logger logger = Logger.getLogger("internal");
+
+  private final static int HEAD = 0;
+  private final static int WRITER = 8;
+  private final static int SESSION = 16;
+  private final static int TAIL = 64;
+  private final static int READER = 72;
+  private final static int SLEEPING = 80;
+  private final static int DATA = 128;
+
+  private final static int SIZE = 1 << 20;
+  private final static int MASK = SIZE - 1;
+
+  private final static int SPINS = 512;
+  private final static int PARKS = 256;
+  private final static int CHECK = 256;
+  private final static int SLEEP = 250;
+  private final static long MINPARK = 10000;
+  private final static long MAXPARK = 50000;
+
+  private final static long pid = ProcessHandle.current().pid();
+
+  private final static VarHandle LONG =
+    MethodHandles.byteBufferViewVarHandle(long[].class,ByteOrder.nativeOrder());
+
+
+  static boolean enabled(Config config) throws Exception
+  {
+    return(config.getTopology().shm);
+  }
+
+
+  static String path(short id, boolean request)
+  {
+    String hex = Integer.toHexString(id);
+    hex = String.format("%4s",hex).replace(' ','0');
+    String ext = request ? ".req" : ".rsp";
+    return(Paths.ipcdir + File.separator + "ipc" + hex + ext);
+  }
+
+
+  /**
+   *
+   * Empty the ring and start a new session.
+   * Done by the RESTServer before each connect.
+   *
+   */
+  static RESTRing create(String path) throws Exception
+  {
+    MappedByteBuffer shmmem = map(path);
+
+    LONG.setVolatile(shmmem,HEAD,0L);
+    LONG.setVolatile(shmmem,TAIL,0L);
+    LONG.setVolatile(shmmem,WRITER,0L);
+    LONG.setVolatile(shmmem,READER,0L);
+    LONG.setVolatile(shmmem,SLEEPING,0L);
+    LONG.setVolatile(shmmem,SESSION,System.nanoTime());
+
+    return(new RESTRing(shmmem));
+  }
+
+
+  static RESTRing open(String path) throws Exception
+  {
+    return(new RESTRing(map(path)));
+  }
+
+
+  private RESTRing(MappedByteBuffer shmmem)
+  {
+    this.shmmem = shmmem;
+    this.session = (long) LONG.getVolatile(shmmem,SESSION);
+  }
+
+
+  /**
+   *
+   * The socket is the admin connection for this direction,
+   * used only to wait for the writer's wake up call.
+   *
+   */
+  InputStream input(Socket socket) throws Exception
+  {
+    socket.setSoTimeout(SLEEP);
+    LONG.setVolatile(shmmem,READER,pid);
+    return(new Input(socket.getInputStream()));
+  }
+
+
+  OutputStream output(Socket socket) throws Exception
+  {
+    LONG.setVolatile(shmmem,WRITER,pid);
+    return(new Output(socket.getOutputStream()));
+  }
+
+
+  private void session() throws IOException
+  {
+    if ((long) LONG.getVolatile(shmmem,SESSION) != session)
+      throw new IOException("Ring reset by new connection");
+  }
+
+
+  private void check(int peer) throws IOException
+  {
+    session();
+
+    long owner = (long) LONG.getVolatile(shmmem,peer);
+    if (owner == 0) return;
+
+    if (!ProcessHandle.of(owner).map(ProcessHandle::isAlive).orElse(false))
+      throw new IOException("Process at other end of ring is gone");
+  }
+
+
+  private void idle(int tries, int peer) throws IOException
+  {
+    if (tries < SPINS)
+    {
+      Thread.onSpinWait();
+      return;
+    }
+
+    int parks = tries - SPINS;
+    LockSupport.parkNanos(Math.min(MAXPARK,MINPARK << Math.min(parks,3)));
+
+    if (parks % CHECK == CHECK - 1)
+      check(peer);
+  }
+
+
+  private static MappedByteBuffer map(String path) throws Exception
+  {
+    Path file = new File(path).toPath();
+    FileChannel fc = FileChannel.open(file,CREATE,READ,WRITE);
+
+    if (!System.getProperty("os.name").startsWith("Windows"))
+    {
+      try
+      {
+        Set<PosixFilePermission> perms = new HashSet<>();
+        perms.add(PosixFilePermission.OWNER_READ);
+        perms.add(PosixFilePermission.OWNER_WRITE);
+        Files.setPosixFilePermissions(file,perms);
+      }
+      catch (Exception e)
+      {
+        logger.warning("Unable to set file permissions for "+path);
+      }
+    }
+
+    MappedByteBuffer shmmem = fc.map(FileChannel.MapMode.READ_WRITE,0,DATA+SIZE);
+    fc.close();
+
+    return(shmmem);
+  }
+
+
+  private class Input extends InputStream
+  {
+    private final InputStream bell;
+    private long tail = (long) LONG.getVolatile(shmmem,TAIL);
+
+    Input(InputStream bell)
+    {
+      this.bell = bell;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      byte[] b = new byte[1];
+      read(b,0,1);
+      return(b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (len == 0) return(0);
+
+      int tries = 0;
+      long avail = 0;
+
+      while((avail = (long) LONG.getAcquire(shmmem,HEAD) - tail) == 0)
+      {
+        if (tries < SPINS + PARKS) idle(tries++,WRITER);
+        else sleep();
+      }
+
+      session();
+
+      if (avail < 0 || avail > SIZE)
+        throw new IOException("Ring reset by new connection");
+
+      int size = (int) Math.min(len,avail);
+
+      int pos = (int) (tail & MASK);
+      int first = Math.min(size,SIZE-pos);
+
+      shmmem.get(DATA+pos,b,off,first);
+      if (size > first) shmmem.get(DATA,b,off+first,size-first);
+
+      session();
+
+      tail += size;
+      LONG.setRelease(shmmem,TAIL,tail);
+
+      return(size);
+    }
+
+    // The writer checks the flag after publishing head
+    private void sleep() throws IOException
+    {
+      LONG.setVolatile(shmmem,SLEEPING,1L);
+
+      if ((long) LONG.getVolatile(shmmem,HEAD) != tail)
+      {
+        LONG.compareAndSet(shmmem,SLEEPING,1L,0L);
+        return;
+      }
+
+      try
+      {
+        if (bell.read() < 0)
+          throw new IOException("Connection closed by other end of ring");
+      }
+      catch (SocketTimeoutException e)
+      {
+        LONG.compareAndSet(shmmem,SLEEPING,1L,0L);
+        check(WRITER);
+      }
+    }
+  }
+
+
+  private class Output extends OutputStream
+  {
+    private final OutputStream bell;
+    private long head = (long) LONG.getVolatile(shmmem,HEAD);
+
+    Output(OutputStream bell)
+    {
+      this.bell = bell;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      write(new byte[] {(byte) b},0,1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      int tries = 0;
+
+      while(len > 0)
+      {
+        session();
+        long free = SIZE - (head - (long) LONG.getAcquire(shmmem,TAIL));
+
+        if (free < 0 || free > SIZE)
+          throw new IOException("Ring reset by new connection");
+
+        if (free == 0)
+        {
+          idle(tries++,READER);
+          continue;
+        }
+
+        tries = 0;
+        int size = (int) Math.min(len,free);
+
+        int pos = (int) (head & MASK);
+        int first = Math.min(size,SIZE-pos);
+
+        shmmem.put(DATA+pos,b,off,first);
+        if (size > first) shmmem.put(DATA,b,off+first,size-first);
+
+        off += size;
+        len -= size;
+        head += size;
+
+        session();
+        LONG.setVolatile(shmmem,HEAD,head);
+
+        if ((long) LONG.getVolatile(shmmem,SLEEPING) == 1L && LONG.compareAndSet(shmmem,SLEEPING,1L,0L))
+        {
+          bell.write(1);
+          bell.flush();
+        }
+      }
+    }
+  }
+}
@@ -28,6 +28,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.net.SocketException;
 import database.rest.config.Config;
 import database.rest.servers.Server;
 import database.rest.cluster.MailBox;
@@ -37,19 +38,22 @@ import database.rest.client.HTTPRequest;
 import database.rest.client.HTTPResponse;
 import database.rest.servers.http.HTTPChannel;
 import java.nio.channels.ClosedChannelException;
+import database.rest.servers.http.HTTPBufferPool;
 
 
 public class RESTServer implements RESTConnection
 {
   private RESTReader reader = null;
   private RESTWriter writer = null;
-  private HTTPChannel rchannel = null;
-  private HTTPChannel wchannel = null;
+  private RESTChannel rchannel = null;
+  private RESTChannel wchannel = null;
   private volatile byte[] httpid = null;
 
   private ByteBuffer buffer = ByteBuffer.allocate(10);
 
   private final int port;
+  private final String unix;
+  private final boolean shm;
   private final short rid;
   private final Server server;
   private final Config config;
@@ -69,30 +73,37 @@ public class RESTServer implements RESTConnection
 
     int http = 1;
     this.port = config.getPorts().admin;
+
+    if (!RESTSocket.enabled(config)) this.unix = null;
+    else this.unix = RESTSocket.path(config);
+
+    this.shm = unix == null && RESTRing.enabled(config);
     if (config.getTopology().hot) http++;
 
     this.rid = (short) (server.id() - http);
-    this.workers = new ThreadPool(config.getTopology().workers);
+    ThreadPool.setLimits(config.getTopology().queue,config.getTopology().qtime);
+    this.workers = new ThreadPool(config.getTopology().workers,config.getTopology().virtual);
 
     serve();
   }
 
 
-  public void respond(RESTComm response)
+  public void respond(RESTComm response, int size)
   {
     if (response.extend >= 0)
     {
+      long id = response.id();
       byte[] data = response.page();
 
-      if (mailbox.fits(data))
+      if (mailbox.write(id,response.extend(),size,data))
       {
         response.set(null);
-        mailbox.write(response.extend(),data);
       }
       else
       {
-        long id = response.id();
-        response = new RESTComm(id,-1,response.host,data);
+        int extend = mailbox.forward(id,response.extend(),data);
+        response = new RESTComm(id,extend,response.host,data);
+        if (extend >= 0) response.set(null);
       }
     }
 
@@ -162,30 +173,19 @@ public class RESTServer implements RESTConnection
 
   private boolean connect()
   {
-    try
-    {
-      SocketChannel rchannel = SocketChannel.open();
-      this.rchannel = new HTTPChannel(server,rchannel,true);
-
-      SocketChannel wchannel = SocketChannel.open();
-      this.wchannel = new HTTPChannel(server,wchannel,true);
-    }
-    catch (Exception e)
-    {
-      logger.log(Level.SEVERE,e.getMessage(),e);
-      logger.severe("Unable to start RESTServer, bailing out");
-      System.exit(-1);
-    }
+    RESTChannel rchannel = open(true);
 
-    if (!connect(this.rchannel))
+    if (rchannel == null)
       return(false);
 
     byte[] readsig = this.httpid;
     // Make sure HTTPServer has not switched
 
-    if (!connect(this.wchannel))
+    RESTChannel wchannel = open(false);
+
+    if (wchannel == null)
     {
-      try {this.rchannel.close();}
+      try {rchannel.close();}
       catch (Exception e) {;}
 
       return(false);
@@ -193,20 +193,106 @@ public class RESTServer implements RESTConnection
 
     if (!Arrays.equals(readsig,this.httpid))
     {
-      try {this.rchannel.close();}
+      try {rchannel.close();}
       catch (Exception e) {;}
 
-      try {this.wchannel.close();}
+      try {wchannel.close();}
       catch (Exception e) {;}
 
       return(false);
     }
 
-    logger.info("Connected to HTTPServer");
+    this.rchannel = rchannel;
+    this.wchannel = wchannel;
+
+    if (shm) logger.info("Connected to HTTPServer using shared memory");
+    else if (unix == null) logger.info("Connected to HTTPServer");
+    else logger.info("Connected to HTTPServer using unix domain socket");
+
     return(true);
   }
 
 
+  private RESTChannel open(boolean request)
+  {
+    if (unix != null)
+      return(connect(unix));
+
+    RESTRing ring = null;
+    HTTPChannel channel = null;
+
+    try
+    {
+      channel = new HTTPChannel(server,SocketChannel.open(),true);
+      if (shm) ring = RESTRing.create(RESTRing.path(server.id(),request));
+    }
+    catch (Exception e)
+    {
+      logger.log(Level.SEVERE,e.getMessage(),e);
+      logger.severe("Unable to start RESTServer, bailing out");
+      System.exit(-1);
+    }
+
+    if (connect(channel))
+      return(new RESTChannel(channel,ring));
+
+    try {channel.close();}
+    catch (Exception e) {;}
+
+    return(null);
+  }
+
+
+  /**
+   *
+   * Same handshake as /connect, but binary, see RESTListener
+   *
+   */
+  private RESTChannel connect(String path)
+  {
+    SocketChannel channel = null;
+
+    try
+    {
+      channel = RESTSocket.connect(path);
+      ByteBuffer buf = ByteBuffer.wrap(signature(server.id(),server.started()));
+
+      while(buf.hasRemaining())
+        channel.write(buf);
+
+      buf = ByteBuffer.allocate(10);
+
+      while(buf.hasRemaining())
+      {
+        if (channel.read(buf) < 0)
+          throw new ClosedChannelException();
+      }
+
+      byte[] signature = buf.array();
+      if (this.httpid == null) this.httpid = signature;
+
+      if (!Arrays.equals(signature,this.httpid))
+          logger.info("HTTPServer restarted or switched");
+
+      this.httpid = signature;
+      return(new RESTChannel(channel));
+    }
+    catch (Exception e)
+    {
+      try {if (channel != null) channel.close();}
+      catch (Exception ex) {;}
+
+      boolean skip = false;
+
+      if (e instanceof SocketException) skip = true;
+      if (e instanceof ClosedChannelException) skip = true;
+
+      if (!skip) logger.log(Level.WARNING,e.getMessage(),e);
+      return(null);
+    }
+  }
+
+
   private boolean connect(HTTPChannel channel)
   {
     try
@@ -239,6 +325,7 @@ public class RESTServer implements RESTConnection
         }
 
         response.add(buf);
+        HTTPBufferPool.release(buf);
       }
 
       channel.socket().setSoTimeout(0);
@@ -307,14 +394,14 @@ public class RESTServer implements RESTConnection
   @Override
   public InputStream reader() throws Exception
   {
-    return(rchannel.socket().getInputStream());
+    return(rchannel.input());
   }
 
 
   @Override
   public OutputStream writer() throws Exception
   {
-    return(wchannel.socket().getOutputStream());
+    return(wchannel.output());
   }
 
 
@@ -331,7 +418,8 @@ public class RESTServer implements RESTConnection
         http.add(page);
       }
 
-      workers.submit(new RESTWorker(this,workers,http));
+      RESTWorker worker = new RESTWorker(this,workers,http);
+      if (!workers.submit(worker)) worker.reject();
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+/*
+  MIT License
+
+  Copyright © 2023 Alex Høffner
+
+  Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+  and associated documentation files (the “Software”), to deal in the Software without
+  restriction, including without limitation the rights to use, copy, modify, merge, publish,
+  distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+  Software is furnished to do so, subject to the following conditions:
+
+  The above copyright notice and this permission notice shall be included in all copies or
+  substantial portions of the Software.
+
+  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+  BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+  DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+  FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+
+package database.rest.servers.rest;
+
+import java.io.File;
+import java.util.Set;
+import java.util.HashSet;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.net.SocketAddress;
+import java.net.ProtocolFamily;
+import java.lang.reflect.Method;
+import java.util.logging.Logger;
+import database.rest.config.Paths;
+import database.rest.config.Config;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.attribute.PosixFilePermission;
+
+
+/**
+ *
+ * Unix domain sockets for the channels between HTTPServer and RESTServers.
+ * They need java 16, and are looked up at runtime, so the code still
+ * builds and runs on older releases using tcp.
+ *
+ */
+class RESTSocket
+{
+  private final static Method address;
+  private final static Method channel;
+  private final static Method server;
+  private final static ProtocolFamily UNIX;
+
+  private final static Logger logger = Logger.getLogger("internal");
+
+
+  static
+  {
+    Method of = null;
+    Method open = null;
+    Method listen = null;
+    ProtocolFamily family = null;
+
+    try
+    {
+      family = StandardProtocolFamily.valueOf("UNIX");
+      of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of",String.class);
+      open = SocketChannel.class.getMethod("open",ProtocolFamily.class);
+      listen = ServerSocketChannel.class.getMethod("open",ProtocolFamily.class);
+    }
+    catch (Throwable e)
+    {
+      family = null;
+    }
+
+    UNIX = family;
+    address = of;
+    channel = open;
+    server = listen;
+  }
+
+
+  static boolean enabled(Config config) throws Exception
+  {
+    if (!config.getTopology().unix)
+      return(false);
+
+    if (UNIX == null)
+    {
+      logger.warning("Unix domain sockets not supported by jvm, using tcp");
+      return(false);
+    }
+
+    return(true);
+  }
+
+
+  static String path(Config config) throws Exception
+  {
+    return(Paths.ipcdir + File.separator + "rest" + config.getPorts().admin + ".sock");
+  }
+
+
+  static SocketChannel connect(String path) throws Exception
+  {
+    SocketChannel socket = (SocketChannel) channel.invoke(null,UNIX);
+
+    try
+    {
+      socket.connect((SocketAddress) address.invoke(null,path));
+    }
+    catch (Exception e)
+    {
+      socket.close();
+      throw e;
+    }
+
+    return(socket);
+  }
+
+
+  static ServerSocketChannel bind(String path) throws Exception
+  {
+    Path file = new File(path).toPath();
+
+    // Left behind by a previous HTTPServer
+    Files.deleteIfExists(file);
+
+    ServerSocketChannel socket = (ServerSocketChannel) server.invoke(null,UNIX);
+    socket.bind((SocketAddress) address.invoke(null,path));
+
+    if (!System.getProperty("os.name").startsWith("Windows"))
+    {
+      try
+      {
+        Set<PosixFilePermission> perms = new HashSet<>();
+        perms.add(PosixFilePermission.OWNER_READ);
+        perms.add(PosixFilePermission.OWNER_WRITE);
+        Files.setPosixFilePermissions(file,perms);
+      }
+      catch (Exception e)
+      {
+        logger.warning("Unable to set file permissions for "+path);
+      }
+    }
+
+    return(socket);
+  }
+}
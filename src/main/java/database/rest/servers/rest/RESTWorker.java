@@ -26,12 +26,13 @@ import java.util.logging.Logger;
 import database.rest.servers.Server;
 import database.rest.config.Handlers;
 import database.rest.pools.ThreadPool;
+import database.rest.pools.Rejectable;
 import database.rest.handlers.RestHandler;
 import database.rest.servers.http.HTTPRequest;
 import database.rest.servers.http.HTTPResponse;
 
 
-public class RESTWorker implements Runnable
+public class RESTWorker implements Rejectable
 {
   private final Logger logger;
   private final RESTComm bridge;
@@ -71,19 +72,30 @@ public class RESTWorker implements Runnable
       }
 
       long id = bridge.id();
+      int size = bridge.size;
       int extend = bridge.extend();
 
       RESTComm bridge = new RESTComm(id,extend,host.getBytes(),data);
-      rserver.respond(bridge);
+      rserver.respond(bridge,size);
     }
     catch (Exception e)
     {
-      this.workers.done();
       logger.log(Level.SEVERE,e.getMessage(),e);
 
       byte[] data = ("{\"status\": \""+e.getMessage()+"\"}").getBytes();
       RESTComm error = new RESTComm(bridge.id(),bridge.extend(),bridge.host(),data);
-      rserver.respond(error);
+      rserver.respond(error,bridge.size);
     }
   }
+
+
+  @Override
+  public void reject()
+  {
+    logger.fine("Request rejected, server busy");
+
+    byte[] data = "{\"status\": \"failed\", \"message\": \"Server busy\"}".getBytes();
+    RESTComm busy = new RESTComm(bridge.id(),bridge.extend(),bridge.host(),data);
+    rserver.respond(busy,bridge.size);
+  }
 }
\ No newline at end of file